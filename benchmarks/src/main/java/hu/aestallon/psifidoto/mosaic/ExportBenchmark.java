@@ -0,0 +1,43 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders a placed mosaic into an image.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Djava.awt.headless=true")
+public class ExportBenchmark {
+
+    @Param({"400", "2500", "10000"})
+    public int tileCount;
+
+    @Param({"100", "1000"})
+    public int librarySize;
+
+    private Mosaic mosaic;
+
+    @Setup
+    public void setUp() {
+        var image = SyntheticImages.target(1600, 1200, 42);
+        mosaic = new Mosaic(
+                SummedAreaTable.ofSquaredChannels(image),
+                Mosaic.layoutOf(image, tileCount, Tile.AspectRatio.FULL_LANDSCAPE),
+                SyntheticImages.library(librarySize, Tile.AspectRatio.FULL_LANDSCAPE, 7),
+                Mosaic.Settings.defaults(0),
+                BuildMonitor.NONE
+        );
+    }
+
+    @Benchmark
+    public BufferedImage export() {
+        return mosaic.export();
+    }
+}
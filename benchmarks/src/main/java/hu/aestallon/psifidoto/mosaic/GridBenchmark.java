@@ -0,0 +1,61 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walks every cell of a fully occupied grid.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GridBenchmark {
+
+    @Param({"400", "2500", "10000"})
+    public int tileCount;
+
+    private Grid<Integer> grid;
+
+    @Setup
+    public void setUp() {
+        int side = (int) Math.ceil(Math.sqrt(tileCount));
+        grid = new Grid<>(side, side);
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                grid.add(x, y, y * side + x);
+            }
+        }
+    }
+
+    @Benchmark
+    public void get(Blackhole blackhole) {
+        for (int y = 0; y < grid.height(); y++) {
+            for (int x = 0; x < grid.width(); x++) {
+                blackhole.consume(grid.get(x, y));
+            }
+        }
+    }
+
+    @Benchmark
+    public void neighboursOf(Blackhole blackhole) {
+        for (int y = 0; y < grid.height(); y++) {
+            for (int x = 0; x < grid.width(); x++) {
+                blackhole.consume(grid.neighboursOf(x, y));
+            }
+        }
+    }
+
+    @Benchmark
+    public void forEachNeighbour(Blackhole blackhole) {
+        for (int y = 0; y < grid.height(); y++) {
+            for (int x = 0; x < grid.width(); x++) {
+                grid.forEachNeighbour(x, y, blackhole::consume);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scans the cells of a target image for their average colours, the way the
+ * colour grid of a mosaic is filled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageUtilsBenchmark {
+
+    @Param({"400", "2500", "10000"})
+    public int tileCount;
+
+    private BufferedImage image;
+    private SummedAreaTable table;
+    private Mosaic.Layout layout;
+
+    @Setup
+    public void setUp() {
+        image = SyntheticImages.target(1600, 1200, 42);
+        table = SummedAreaTable.ofSquaredChannels(image);
+        layout = Mosaic.layoutOf(image, tileCount, Tile.AspectRatio.FULL_LANDSCAPE);
+    }
+
+    @Benchmark
+    public void averageColourOfRegion(Blackhole blackhole) {
+        int scanWidth = image.getWidth() / layout.columnCount();
+        int scanHeight = image.getHeight() / layout.rowCount();
+        for (int y = 0; y < layout.rowCount(); y++) {
+            for (int x = 0; x < layout.columnCount(); x++) {
+                blackhole.consume(ImageUtils.averageRgbOfRegion(
+                        image,
+                        x * scanWidth, (x + 1) * scanWidth,
+                        y * scanHeight, (y + 1) * scanHeight
+                ));
+            }
+        }
+    }
+
+    @Benchmark
+    public void summedAreaTableLookup(Blackhole blackhole) {
+        int scanWidth = table.width() / layout.columnCount();
+        int scanHeight = table.height() / layout.rowCount();
+        for (int y = 0; y < layout.rowCount(); y++) {
+            for (int x = 0; x < layout.columnCount(); x++) {
+                blackhole.consume(table.averageColourOfRegion(
+                        x * scanWidth, (x + 1) * scanWidth,
+                        y * scanHeight, (y + 1) * scanHeight
+                ));
+            }
+        }
+    }
+
+    @Benchmark
+    public SummedAreaTable summedAreaTableBuild() {
+        return SummedAreaTable.ofSquaredChannels(image);
+    }
+}
@@ -0,0 +1,61 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds mosaics from a prepared target and tile library, i.e. fills the colour
+ * grid, sets up matching and places the tiles. {@link #buildWithNewLibrary()}
+ * indexes the tiles anew first, like the first build after loading them, so
+ * nothing matching sets up lazily is reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlacementBenchmark {
+
+    @Param({"400", "2500", "10000"})
+    public int tileCount;
+
+    @Param({"100", "1000", "5000"})
+    public int librarySize;
+
+    @Param({"0", "3"})
+    public int minRepetitionDistance;
+
+    @Param({"CENTRE_BIASED", "PARALLEL_REGIONS"})
+    public Mosaic.Placement placement;
+
+    @Param({"AVERAGE_COLOUR", "QUANTISED_COLOUR"})
+    public Mosaic.Matching matching;
+
+    private SummedAreaTable table;
+    private Mosaic.Layout layout;
+    private TileLibrary tiles;
+    private Mosaic.Settings settings;
+
+    @Setup
+    public void setUp() {
+        var image = SyntheticImages.target(1600, 1200, 42);
+        table = SummedAreaTable.ofSquaredChannels(image);
+        layout = Mosaic.layoutOf(image, tileCount, Tile.AspectRatio.FULL_LANDSCAPE);
+        tiles = SyntheticImages.library(librarySize, Tile.AspectRatio.FULL_LANDSCAPE, 7);
+        settings = new Mosaic.Settings(matching, placement, minRepetitionDistance, Duration.ofSeconds(2), 0L);
+    }
+
+    @Benchmark
+    public Mosaic build() {
+        return new Mosaic(table, layout, tiles, settings, BuildMonitor.NONE);
+    }
+
+    @Benchmark
+    public Mosaic buildWithNewLibrary() {
+        TileLibrary library = TileLibrary.of(tiles.tiles(), tiles.aspectRatio());
+        return new Mosaic(table, layout, library, settings, BuildMonitor.NONE);
+    }
+}
@@ -0,0 +1,74 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Generates target images and tile libraries for the benchmarks. The same seed
+ * always yields the same pixels, so no photos are needed and runs stay
+ * comparable.
+ */
+final class SyntheticImages {
+    private SyntheticImages() {}
+
+    /**
+     * A diagonal gradient covered with random translucent ellipses, so that
+     * cells differ both in colour and in detail.
+     */
+    static BufferedImage target(int width, int height, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, randomColour(random), width, height, randomColour(random)));
+        g.fillRect(0, 0, width, height);
+        for (int i = 0; i < 64; i++) {
+            Color c = randomColour(random);
+            g.setColor(new Color(c.getRed(), c.getGreen(), c.getBlue(), 128));
+            int w = 1 + random.nextInt(width / 4 + 1);
+            int h = 1 + random.nextInt(height / 4 + 1);
+            g.fillOval(random.nextInt(width), random.nextInt(height), w, h);
+        }
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Tile images of a single background colour and a differently coloured
+     * disc, sized {@code width x height}.
+     */
+    static List<BufferedImage> tileImages(int size, int width, int height, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        List<BufferedImage> images = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = image.createGraphics();
+            g.setColor(randomColour(random));
+            g.fillRect(0, 0, width, height);
+            g.setColor(randomColour(random));
+            int d = Math.min(width, height) / 2;
+            g.fillOval(random.nextInt(width - d + 1), random.nextInt(height - d + 1), d, d);
+            g.dispose();
+            images.add(image);
+        }
+        return images;
+    }
+
+    static List<Tile> tiles(int size, Tile.AspectRatio aspectRatio, long seed) {
+        List<Tile> tiles = new ArrayList<>(size);
+        for (BufferedImage image : tileImages(size, 16 * aspectRatio.width, 16 * aspectRatio.height, seed)) {
+            tiles.add(new Tile(image, aspectRatio));
+        }
+        return tiles;
+    }
+
+    static TileLibrary library(int size, Tile.AspectRatio aspectRatio, long seed) {
+        return TileLibrary.of(tiles(size, aspectRatio, seed), aspectRatio);
+    }
+
+    private static Color randomColour(SplittableRandom random) {
+        return new Color(random.nextInt(0x1000000));
+    }
+}
@@ -0,0 +1,55 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.awt.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a colour against every tile of a library, the way exhaustive
+ * matching does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int librarySize;
+
+    private List<Tile> tiles;
+    private TileColourIndex index;
+    private Color target;
+
+    @Setup
+    public void setUp() {
+        tiles = SyntheticImages.tiles(librarySize, Tile.AspectRatio.SQUARE, 7);
+        index = new TileColourIndex(tiles);
+        target = new Color(0x8040C0);
+    }
+
+    @Benchmark
+    public void colourDistance(Blackhole blackhole) {
+        for (Tile tile : tiles) {
+            blackhole.consume(tile.colourDistance(target));
+        }
+    }
+
+    @Benchmark
+    public void squaredColourDistance(Blackhole blackhole) {
+        int rgb = target.getRGB();
+        for (Tile tile : tiles) {
+            blackhole.consume(tile.squaredColourDistance(rgb));
+        }
+    }
+
+    @Benchmark
+    public Tile nearest() {
+        return index.nearest(target.getRGB());
+    }
+}
@@ -1,8 +1,311 @@
 package hu.aestallon.psifidoto;
 
+import hu.aestallon.psifidoto.mosaic.Mosaic;
+import hu.aestallon.psifidoto.mosaic.Tile;
+import hu.aestallon.psifidoto.mosaic.TileLibrary;
+import hu.aestallon.psifidoto.util.io.Directory;
+import hu.aestallon.psifidoto.util.io.ImageFile;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Renders a batch of mosaics from the command line: the tile library is loaded
+ * once, then every target is built and exported on a pool of workers.
+ */
 public class Application {
 
+    private static final String USAGE = """
+            Usage: psifidoto --tiles <dir> [options] <target>...
+
+            Targets are image files or glob patterns, e.g. 'photos/**/*.jpg'.
+            Each mosaic is written to <output>/<target name>-mosaic.png; targets
+            matched by a pattern keep their directories below the pattern's
+            base, e.g. <output>/2023/IMG_0001-mosaic.png.
+
+            Options:
+              --tiles <dir>            directory of the tile images (required)
+              --output <dir>           where to write the mosaics (default: .)
+              --workers <n>            mosaics rendered at the same time
+                                       (default: number of processors)
+              --tile-count <n>         approximate number of tiles per mosaic
+                                       (default: 2500)
+              --aspect-ratio <ratio>   one of %s (default: FULL_LANDSCAPE)
+              --min-repetition <n>     minimum distance between copies of a tile
+                                       (default: 0)
+              --matching <mode>        one of %s (default: AVERAGE_COLOUR)
+              --placement <mode>       one of %s (default: CENTRE_BIASED)
+              --recursive              also load tiles from subdirectories
+              --dedup <n>              drop tiles within <n> bits of the
+                                       perceptual hash of another (default: off)
+              --cache                  keep a tile index in the tile directory
+            """.formatted(
+            List.of(Tile.AspectRatio.values()),
+            List.of(Mosaic.Matching.values()),
+            List.of(Mosaic.Placement.values())
+    );
+
     public static void main(String[] args) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println();
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        System.exit(run(options) ? 0 : 1);
+    }
+
+    /**
+     * A target image and where its mosaic is written, relative to the output
+     * directory.
+     */
+    private record Target(ImageFile image, Path output) {}
+
+    private static boolean run(Options options) {
+        List<Target> targets;
+        try {
+            targets = resolveTargets(options.targets);
+            Files.createDirectories(options.output);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Cannot prepare the batch: " + e);
+            return false;
+        }
+        if (targets.isEmpty()) {
+            System.err.println("No target images found.");
+            return false;
+        }
+
+        long start = System.nanoTime();
+        TileLibrary library;
+        try {
+            library = Mosaic.newInstance()
+                    .withTilesFrom(Directory.of(options.tiles), options.recursive)
+                    .withTileAspectRatio(options.aspectRatio)
+                    .withTileCache(options.cache)
+                    .withNearDuplicateDistance(options.nearDuplicateDistance)
+                    .buildTileLibrary();
+        } catch (RuntimeException e) {
+            System.err.println("Cannot load the tiles: " + e);
+            return false;
+        }
+        System.out.printf("Loaded %d tiles in %d ms%n", library.size(), millisSince(start));
+        if (library.isEmpty()) {
+            System.err.println("No tile images found in " + options.tiles);
+            return false;
+        }
+
+        long batchStart = System.nanoTime();
+        ExecutorService workers = Executors.newFixedThreadPool(options.workers);
+        List<Future<Boolean>> jobs = new ArrayList<>(targets.size());
+        for (Target target : targets) {
+            jobs.add(workers.submit(() -> render(target, library, options)));
+        }
+        int succeeded = 0;
+        for (Future<Boolean> job : jobs) {
+            try {
+                if (job.get()) succeeded++;
+            } catch (Exception e) {
+                // render() reports its own failures
+            }
+        }
+        workers.shutdown();
+
+        long elapsed = millisSince(batchStart);
+        System.out.printf(
+                Locale.ROOT,
+                "Rendered %d of %d mosaics in %.1f s (%.1f images per minute)%n",
+                succeeded, targets.size(), elapsed / 1000d,
+                elapsed == 0 ? 0d : succeeded * 60_000d / elapsed
+        );
+        return succeeded == targets.size();
+    }
+
+    private static boolean render(Target target, TileLibrary library, Options options) {
+        Path output = options.output.resolve(target.output());
+        try {
+            long start = System.nanoTime();
+            Files.createDirectories(output.toAbsolutePath().getParent());
+            // the builder keeps the scanned target, so it is not held on to
+            // while exporting
+            Mosaic mosaic = Mosaic.newInstance()
+                    .withTileLibrary(library)
+                    .targetImage(target.image())
+                    .withTileCountOf(options.tileCount)
+                    .withMinRepetitionDistance(options.minRepetitionDistance)
+                    .withMatching(options.matching)
+                    .withPlacement(options.placement)
+                    .build();
+            long built = System.nanoTime();
+            mosaic.exportTo(output);
+            System.out.printf(
+                    "%s -> %s: build %d ms, export %d ms%n",
+                    target.image().toPath(), output, (built - start) / 1_000_000, millisSince(built)
+            );
+            return true;
+        } catch (Exception e) {
+            System.err.println(target.image().toPath() + " failed: " + e);
+            return false;
+        }
+    }
+
+    private static long millisSince(long nanoTime) {
+        return (System.nanoTime() - nanoTime) / 1_000_000;
+    }
+
+    /**
+     * Expands the glob patterns among the given targets. A pattern is matched
+     * against the paths under the directory of its first wildcard; the mosaics
+     * of its matches keep their paths relative to that directory.
+     *
+     * @throws IllegalArgumentException if two targets would be written to the
+     *                                  same file
+     */
+    private static List<Target> resolveTargets(List<String> targets) throws IOException {
+        // the output of every target, relative to the output directory
+        TreeMap<ImageFile, Path> files = new TreeMap<>();
+        for (String target : targets) {
+            int wildcard = indexOfWildcard(target);
+            if (wildcard < 0) {
+                Path path = Paths.get(target);
+                files.putIfAbsent(ImageFile.of(path), outputOf(path.getFileName()));
+                continue;
+            }
+            int separator = Math.max(target.lastIndexOf('/', wildcard), target.lastIndexOf('\\', wildcard));
+            Path base = Paths.get(separator < 0 ? "." : target.substring(0, separator + 1));
+            String glob = target.substring(separator + 1);
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            // like in shells, a leading **/ also matches no directory at all
+            PathMatcher topLevelMatcher = glob.startsWith("**/")
+                    ? FileSystems.getDefault().getPathMatcher("glob:" + glob.substring(3))
+                    : matcher;
+            try (Stream<Path> paths = Files.walk(base)) {
+                paths.filter(Files::isRegularFile)
+                        .map(base::relativize)
+                        .filter(path -> matcher.matches(path) || topLevelMatcher.matches(path))
+                        .filter(path -> ImageFile.isValidPath(base.resolve(path)))
+                        .forEach(path -> files.putIfAbsent(ImageFile.of(base.resolve(path)), outputOf(path)));
+            }
+        }
+
+        Map<Path, ImageFile> targetsByOutput = new HashMap<>();
+        List<Target> result = new ArrayList<>(files.size());
+        for (Map.Entry<ImageFile, Path> file : files.entrySet()) {
+            ImageFile other = targetsByOutput.putIfAbsent(file.getValue(), file.getKey());
+            if (other != null) {
+                throw new IllegalArgumentException(
+                        other.toPath() + " and " + file.getKey().toPath() + " would both be written to "
+                        + file.getValue()
+                );
+            }
+            result.add(new Target(file.getKey(), file.getValue()));
+        }
+        return result;
+    }
+
+    // <directories>/<name>-mosaic.png for the relative path of a target
+    private static Path outputOf(Path relativePath) {
+        String name = relativePath.getFileName().toString();
+        return relativePath.resolveSibling(name.substring(0, name.lastIndexOf('.')) + "-mosaic.png");
+    }
+
+    private static int indexOfWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("*?[{".indexOf(pattern.charAt(i)) >= 0) return i;
+        }
+        return -1;
+    }
+
+    private static final class Options {
+        private Path tiles;
+        private Path output = Paths.get(".");
+        private int workers = Runtime.getRuntime().availableProcessors();
+        private int tileCount = 2500;
+        private Tile.AspectRatio aspectRatio = Tile.AspectRatio.FULL_LANDSCAPE;
+        private int minRepetitionDistance;
+        private Mosaic.Matching matching = Mosaic.Matching.AVERAGE_COLOUR;
+        private Mosaic.Placement placement = Mosaic.Placement.CENTRE_BIASED;
+        private boolean recursive;
+        private int nearDuplicateDistance = -1;
+        private boolean cache;
+        private final List<String> targets = new ArrayList<>();
+
+        private static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    options.targets.add(arg);
+                    continue;
+                }
+                if (arg.equals("--recursive")) {
+                    options.recursive = true;
+                    continue;
+                }
+                if (arg.equals("--cache")) {
+                    options.cache = true;
+                    continue;
+                }
+                if (i + 1 == args.length) throw new IllegalArgumentException("Missing value for " + arg);
+                String value = args[++i];
+                switch (arg) {
+                    case "--tiles" -> options.tiles = Paths.get(value);
+                    case "--output" -> options.output = Paths.get(value);
+                    case "--workers" -> options.workers = positive(arg, value);
+                    case "--tile-count" -> options.tileCount = positive(arg, value);
+                    case "--aspect-ratio" -> options.aspectRatio = constant(Tile.AspectRatio.class, arg, value);
+                    case "--dedup" -> options.nearDuplicateDistance = Math.max(0, integer(arg, value));
+                    case "--min-repetition" -> options.minRepetitionDistance = Math.max(0, integer(arg, value));
+                    case "--matching" -> options.matching = constant(Mosaic.Matching.class, arg, value);
+                    case "--placement" -> options.placement = constant(Mosaic.Placement.class, arg, value);
+                    default -> throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (options.tiles == null) throw new IllegalArgumentException("No tile directory given");
+            if (!Files.isDirectory(options.tiles)) {
+                throw new IllegalArgumentException("Not a directory: " + options.tiles);
+            }
+            if (options.targets.isEmpty()) throw new IllegalArgumentException("No target images given");
+            return options;
+        }
+
+        private static int integer(String option, String value) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a number for " + option + ": " + value);
+            }
+        }
+
+        private static int positive(String option, String value) {
+            int n = integer(option, value);
+            if (n < 1) throw new IllegalArgumentException(option + " must be positive");
+            return n;
+        }
 
+        private static <E extends Enum<E>> E constant(Class<E> type, String option, String value) {
+            try {
+                return Enum.valueOf(type, value.toUpperCase(Locale.ROOT).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown value for " + option + ": " + value);
+            }
+        }
     }
 }
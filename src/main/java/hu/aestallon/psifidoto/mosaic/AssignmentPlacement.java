@@ -0,0 +1,411 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Places tiles by solving the cell-to-tile assignment as a whole, instead of
+ * greedily cell by cell.
+ *
+ * <p>The grid is split into blocks whose side is the minimum repetition
+ * distance, and every tile may be used at most once per block: a tile in a
+ * block is a <i>slot</i> that the cells of the block compete for. Each cell is
+ * connected to the slots of its {@value #CANDIDATES_PER_CELL} best matching
+ * tiles only, and the assignment minimising the total cost on this sparse graph
+ * is approximated with Bertsekas' auction algorithm under epsilon-scaling:
+ * unassigned cells bid for their most profitable slot (computed in parallel),
+ * bids are resolved in a sequential pass, and outbid cells try again in the
+ * next round. As there are usually more slots than cells, each phase ends with
+ * a reverse auction, in which slots left over bid for cells until none is
+ * priced above the owned slots of its block. Repetitions across block borders
+ * are repaired afterwards.
+ *
+ * <p>Each completed scaling phase yields a complete assignment; the cheapest one
+ * found before the time budget runs out is used. Cells the sparse graph cannot
+ * accommodate are matched greedily.
+ */
+final class AssignmentPlacement {
+    static final int CANDIDATES_PER_CELL = 16;
+
+    private static final float EPSILON_REDUCTION = 4f;
+    // a cell whose best offer is worse than this many times the largest cost
+    // gives up bidding and is matched greedily instead
+    private static final float GIVE_UP_FACTOR = 4f;
+    // how deep the matcher is searched for cells the auction left unassigned,
+    // once past the deadline
+    private static final int FALLBACK_CANDIDATES = 4 * CANDIDATES_PER_CELL;
+
+    private final TileMatcher matcher;
+    private final int width;
+    private final int cellCount;
+    private final int minRepetitionDistance;
+    private final int blockSide;
+    private final int blocksPerRow;
+    private final int blockCount;
+
+    private final Tile[] tiles;
+    private final Map<Tile, Integer> tileIndices;
+
+    // the sparse candidate graph: CANDIDATES_PER_CELL entries per cell
+    private final int[] candidateTiles;
+    private final float[] candidateBenefits;
+    private final int[] candidateSlots;
+    private final int[] candidateCounts;
+    // the same graph by slot: the entries of slot s are
+    // slotEntries[slotEntryStarts[s]] to slotEntries[slotEntryStarts[s + 1] - 1]
+    private int[] slotEntryStarts;
+    private int[] slotEntries;
+    // the block of each slot, or -1 for the entries past a cell's candidates,
+    // which are slots of their own no cell can reach with single-cell blocks
+    private int[] slotBlocks;
+    private float maxCost;
+
+    private float[] prices;
+    private int[] owners;
+    private final int[] assignedEntries;
+    private int rejectedCandidates;
+
+    AssignmentPlacement(TileMatcher matcher,
+                        int width, int height,
+                        Collection<Tile> tiles,
+                        int minRepetitionDistance) {
+        this.matcher = matcher;
+        this.width = width;
+        this.cellCount = width * height;
+        this.minRepetitionDistance = minRepetitionDistance;
+        this.blockSide = Math.max(1, minRepetitionDistance);
+        this.blocksPerRow = (width + blockSide - 1) / blockSide;
+        this.blockCount = blocksPerRow * ((height + blockSide - 1) / blockSide);
+
+        this.tiles = tiles.toArray(new Tile[0]);
+        this.tileIndices = new HashMap<>(this.tiles.length * 2);
+        for (int i = 0; i < this.tiles.length; i++) {
+            tileIndices.put(this.tiles[i], i);
+        }
+
+        this.candidateTiles = new int[cellCount * CANDIDATES_PER_CELL];
+        this.candidateBenefits = new float[cellCount * CANDIDATES_PER_CELL];
+        this.candidateSlots = new int[cellCount * CANDIDATES_PER_CELL];
+        this.candidateCounts = new int[cellCount];
+        this.assignedEntries = new int[cellCount];
+    }
+
+    /**
+     * Returns the tile of every cell, in row-major order.
+     */
+    Tile[] place(Duration timeBudget) {
+        final long deadline = System.nanoTime() + timeBudget.toNanos();
+        buildCandidateGraph();
+
+        int[] best = null;
+        double bestCost = Double.POSITIVE_INFINITY;
+        final float minEpsilon = Math.max(maxCost / (4f * cellCount), Float.MIN_NORMAL);
+        float epsilon = Math.max(maxCost / 2f, minEpsilon);
+        while (true) {
+            boolean complete = runPhase(epsilon, deadline);
+            int[] assignment = completeGreedily(deadline);
+            double cost = costOf(assignment);
+            if (cost < bestCost) {
+                best = assignment;
+                bestCost = cost;
+            }
+            if (!complete || epsilon <= minEpsilon || System.nanoTime() > deadline) break;
+            epsilon = Math.max(epsilon / EPSILON_REDUCTION, minEpsilon);
+        }
+
+        repairRepetitions(best);
+        Tile[] result = new Tile[cellCount];
+        for (int cell = 0; cell < cellCount; cell++) {
+            result[cell] = tiles[best[cell]];
+        }
+        return result;
+    }
+
+    /**
+     * Returns how many candidates were passed over while repairing repetitions
+     * in the last {@link #place}.
+     */
+    int rejectedCandidates() {
+        return rejectedCandidates;
+    }
+
+    private long slotKey(int tile, int cell) {
+        return (long) blockOf(cell) * tiles.length + tile;
+    }
+
+    private int blockOf(int cell) {
+        int x = cell % width, y = cell / width;
+        return (y / blockSide) * blocksPerRow + x / blockSide;
+    }
+
+    //--------------------------------------------------------------------------
+    // auction
+
+    private void buildCandidateGraph() {
+        IntStream.range(0, cellCount).parallel().forEach(cell -> {
+            TileMatcher.Candidates candidates = matcher.candidates(cell % width, cell / width);
+            int count = 0;
+            while (count < CANDIDATES_PER_CELL && candidates.hasNext()) {
+                int entry = cell * CANDIDATES_PER_CELL + count;
+                candidateTiles[entry] = tileIndices.get(candidates.next());
+                candidateBenefits[entry] = -candidates.cost();
+                count++;
+            }
+            candidateCounts[cell] = count;
+        });
+
+        // number the slots actually reachable from some cell; with single-cell
+        // blocks, every entry is a slot of its own
+        Map<Long, Integer> slots = new HashMap<>();
+        float max = 0;
+        for (int cell = 0; cell < cellCount; cell++) {
+            for (int k = 0; k < candidateCounts[cell]; k++) {
+                int entry = cell * CANDIDATES_PER_CELL + k;
+                if (blockSide == 1) {
+                    candidateSlots[entry] = entry;
+                } else {
+                    Integer slot = slots.putIfAbsent(slotKey(candidateTiles[entry], cell), slots.size());
+                    candidateSlots[entry] = slot == null ? slots.size() - 1 : slot;
+                }
+                max = Math.max(max, -candidateBenefits[entry]);
+            }
+        }
+        this.maxCost = Math.max(max, 1f);
+        int slotCount = blockSide == 1 ? candidateSlots.length : slots.size();
+        this.prices = new float[slotCount];
+        this.owners = new int[slotCount];
+
+        this.slotEntryStarts = new int[slotCount + 1];
+        for (int cell = 0; cell < cellCount; cell++) {
+            for (int k = 0; k < candidateCounts[cell]; k++) {
+                slotEntryStarts[candidateSlots[cell * CANDIDATES_PER_CELL + k] + 1]++;
+            }
+        }
+        Arrays.parallelPrefix(slotEntryStarts, Integer::sum);
+        this.slotEntries = new int[slotEntryStarts[slotCount]];
+        this.slotBlocks = new int[slotCount];
+        Arrays.fill(slotBlocks, -1);
+        int[] filled = Arrays.copyOf(slotEntryStarts, slotCount);
+        for (int cell = 0; cell < cellCount; cell++) {
+            for (int k = 0; k < candidateCounts[cell]; k++) {
+                int entry = cell * CANDIDATES_PER_CELL + k;
+                slotEntries[filled[candidateSlots[entry]]++] = entry;
+                slotBlocks[candidateSlots[entry]] = blockOf(cell);
+            }
+        }
+    }
+
+    /**
+     * Runs auction rounds until every cell is assigned or has given up, then
+     * the reverse auction. Prices are kept from the previous phase. Returns
+     * {@code false} if the deadline passed first.
+     */
+    private boolean runPhase(float epsilon, long deadline) {
+        Arrays.fill(owners, -1);
+        Arrays.fill(assignedEntries, -1);
+
+        int[] queue = IntStream.range(0, cellCount).toArray();
+        int[] nextQueue = new int[cellCount];
+        int queued = cellCount;
+        final int[] bidEntries = new int[cellCount];
+        final float[] bids = new float[cellCount];
+        final float giveUpValue = -GIVE_UP_FACTOR * maxCost;
+
+        while (queued > 0) {
+            if (System.nanoTime() > deadline) return false;
+
+            final int[] bidders = queue;
+            IntStream.range(0, queued).parallel().forEach(i -> {
+                int cell = bidders[i];
+                bidEntries[cell] = computeBid(cell, epsilon, giveUpValue, bids);
+            });
+
+            int nextQueued = 0;
+            for (int i = 0; i < queued; i++) {
+                int cell = bidders[i];
+                int entry = bidEntries[cell];
+                if (entry < 0) continue; // gave up
+                int slot = candidateSlots[entry];
+                // an earlier bid of this round may have raised the price
+                if (bids[cell] <= prices[slot] && owners[slot] >= 0) {
+                    nextQueue[nextQueued++] = cell;
+                    continue;
+                }
+                int outbid = owners[slot];
+                if (outbid >= 0) {
+                    assignedEntries[outbid] = -1;
+                    nextQueue[nextQueued++] = outbid;
+                }
+                owners[slot] = cell;
+                prices[slot] = bids[cell];
+                assignedEntries[cell] = entry;
+            }
+
+            int[] swap = queue;
+            queue = nextQueue;
+            nextQueue = swap;
+            queued = nextQueued;
+        }
+        return runReverseAuction(epsilon, deadline);
+    }
+
+    // a slot nobody bid for in this phase keeps the price of an earlier one,
+    // which may keep cells away from it although it is their better match:
+    // such slots bid for the cell that gains the most by moving over, or are
+    // marked down to the cheapest owned slot of their block (Bertsekas' reverse
+    // auction for asymmetric assignment)
+    private boolean runReverseAuction(float epsilon, long deadline) {
+        float[] floors = new float[blockCount];
+        Arrays.fill(floors, Float.POSITIVE_INFINITY);
+        for (int slot = 0; slot < prices.length; slot++) {
+            if (owners[slot] >= 0) floors[slotBlocks[slot]] = Math.min(floors[slotBlocks[slot]], prices[slot]);
+        }
+
+        int[] stack = new int[prices.length];
+        int stacked = 0;
+        for (int slot = 0; slot < prices.length; slot++) {
+            if (slotBlocks[slot] >= 0 && owners[slot] < 0 && prices[slot] > floors[slotBlocks[slot]]) {
+                stack[stacked++] = slot;
+            }
+        }
+        while (stacked > 0) {
+            if (System.nanoTime() > deadline) return false;
+            int slot = stack[--stacked];
+            float floor = floors[slotBlocks[slot]];
+
+            int bestEntry = -1;
+            float bestValue = Float.NEGATIVE_INFINITY;
+            float secondValue = Float.NEGATIVE_INFINITY;
+            for (int i = slotEntryStarts[slot]; i < slotEntryStarts[slot + 1]; i++) {
+                int entry = slotEntries[i];
+                int assigned = assignedEntries[entry / CANDIDATES_PER_CELL];
+                if (assigned < 0) continue; // gave up
+                float profit = candidateBenefits[assigned] - prices[candidateSlots[assigned]];
+                float value = candidateBenefits[entry] - profit;
+                if (value > bestValue) {
+                    secondValue = bestValue;
+                    bestValue = value;
+                    bestEntry = entry;
+                } else if (value > secondValue) {
+                    secondValue = value;
+                }
+            }
+            if (bestEntry < 0 || bestValue <= floor + epsilon) {
+                prices[slot] = floor;
+                continue;
+            }
+
+            int cell = bestEntry / CANDIDATES_PER_CELL;
+            int left = candidateSlots[assignedEntries[cell]];
+            owners[left] = -1;
+            if (prices[left] > floor) stack[stacked++] = left;
+            owners[slot] = cell;
+            prices[slot] = Math.max(floor, secondValue - epsilon);
+            assignedEntries[cell] = bestEntry;
+        }
+        return true;
+    }
+
+    // returns the candidate entry the cell bids for, or -1 if it gives up
+    private int computeBid(int cell, float epsilon, float giveUpValue, float[] bids) {
+        int bestEntry = -1;
+        float bestValue = Float.NEGATIVE_INFINITY;
+        float secondValue = Float.NEGATIVE_INFINITY;
+        int entry = cell * CANDIDATES_PER_CELL;
+        for (int k = 0; k < candidateCounts[cell]; k++, entry++) {
+            float value = candidateBenefits[entry] - prices[candidateSlots[entry]];
+            if (value > bestValue) {
+                secondValue = bestValue;
+                bestValue = value;
+                bestEntry = entry;
+            } else if (value > secondValue) {
+                secondValue = value;
+            }
+        }
+        if (bestEntry < 0 || bestValue < giveUpValue) return -1;
+        if (secondValue == Float.NEGATIVE_INFINITY) secondValue = bestValue - maxCost;
+
+        bids[cell] = prices[candidateSlots[bestEntry]] + (bestValue - secondValue) + epsilon;
+        return bestEntry;
+    }
+
+    //--------------------------------------------------------------------------
+    // completing and scoring assignments
+
+    // turns the current (possibly partial) auction result into a complete
+    // assignment of tile indices: cells left without a slot take the best
+    // candidate whose slot is still free (searching only a few candidates once
+    // past the deadline), or failing that, the best candidate
+    private int[] completeGreedily(long deadline) {
+        int[] assignment = new int[cellCount];
+        Set<Long> taken = new HashSet<>();
+        for (int cell = 0; cell < cellCount; cell++) {
+            int entry = assignedEntries[cell];
+            assignment[cell] = entry < 0 ? -1 : candidateTiles[entry];
+            if (entry >= 0) taken.add(slotKey(assignment[cell], cell));
+        }
+        for (int cell = 0; cell < cellCount; cell++) {
+            if (assignment[cell] >= 0) continue;
+            int depth = System.nanoTime() < deadline ? Integer.MAX_VALUE : FALLBACK_CANDIDATES;
+            TileMatcher.Candidates candidates = matcher.candidates(cell % width, cell / width);
+            for (int k = 0; k < depth && candidates.hasNext(); k++) {
+                int tile = tileIndices.get(candidates.next());
+                if (k == 0) assignment[cell] = tile;
+                if (taken.add(slotKey(tile, cell))) {
+                    assignment[cell] = tile;
+                    break;
+                }
+            }
+        }
+        return assignment;
+    }
+
+    private double costOf(int[] assignment) {
+        double cost = 0;
+        for (int cell = 0; cell < cellCount; cell++) {
+            cost += costOf(cell, assignment[cell]);
+        }
+        return cost;
+    }
+
+    private float costOf(int cell, int tile) {
+        int count = candidateCounts[cell];
+        for (int k = 0; k < count; k++) {
+            int entry = cell * CANDIDATES_PER_CELL + k;
+            if (candidateTiles[entry] == tile) return -candidateBenefits[entry];
+        }
+        // not among the candidates: no cheaper than the worst of them
+        return count == 0 ? maxCost : -candidateBenefits[cell * CANDIDATES_PER_CELL + count - 1];
+    }
+
+    /**
+     * Swaps out tiles repeated within the minimum repetition distance of
+     * themselves (i.e. across block borders) for the next best candidates that
+     * are not, just like greedy placement would.
+     */
+    private void repairRepetitions(int[] assignment) {
+        rejectedCandidates = 0;
+        if (minRepetitionDistance <= 0) return;
+        TilePlacements placements = new TilePlacements();
+        for (int cell = 0; cell < cellCount; cell++) {
+            int x = cell % width, y = cell / width;
+            Tile tile = tiles[assignment[cell]];
+            if (placements.isWithin(tile, x, y, minRepetitionDistance)) {
+                TileMatcher.Candidates candidates = matcher.candidates(x, y);
+                tile = candidates.next();
+                while (candidates.hasNext() && placements.isWithin(tile, x, y, minRepetitionDistance)) {
+                    tile = candidates.next();
+                    rejectedCandidates++;
+                }
+                assignment[cell] = tileIndices.get(tile);
+            }
+            placements.add(tile, x, y);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import hu.aestallon.psifidoto.util.io.ImageFile;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Times the phases of a build, forwarding the results to a
+ * {@link MosaicListener} and recording them as JFR events.
+ */
+final class BuildMonitor {
+    static final BuildMonitor NONE = new BuildMonitor(MosaicListener.NONE);
+
+    private final MosaicListener listener;
+    // cropping is interleaved with decoding, so it is summed up per tile
+    private final LongAdder cropNanos = new LongAdder();
+    private final LongAdder croppedTiles = new LongAdder();
+
+    BuildMonitor(MosaicListener listener) {
+        this.listener = listener;
+    }
+
+    Span start(MosaicListener.Phase phase, int total) {
+        return new Span(phase, total);
+    }
+
+    /**
+     * Reports a phase which did not run as one stretch, by the time spent in
+     * it in total.
+     */
+    void record(MosaicListener.Phase phase, long nanos, int count) {
+        PhaseEvent event = new PhaseEvent();
+        if (event.shouldCommit()) {
+            event.phase = phase.name();
+            event.count = count;
+            event.totalTime = nanos;
+            event.commit();
+        }
+        listener.phaseFinished(phase, Duration.ofNanos(nanos), count);
+    }
+
+    /**
+     * Records the loading of a single tile. Cached tiles are neither decoded
+     * nor cropped while loading.
+     */
+    void tileLoaded(ImageFile file, long decodeNanos, long cropNanos, boolean cached) {
+        if (!cached) {
+            this.cropNanos.add(cropNanos);
+            this.croppedTiles.increment();
+        }
+        TileLoadEvent event = new TileLoadEvent();
+        if (event.shouldCommit()) {
+            event.file = file.toPath().toString();
+            event.decodeTime = decodeNanos;
+            event.cropTime = cropNanos;
+            event.cached = cached;
+            event.commit();
+        }
+    }
+
+    /**
+     * Reports the {@link MosaicListener.Phase#CROP CROP} phase from the tiles
+     * loaded so far.
+     */
+    void recordCropping() {
+        record(MosaicListener.Phase.CROP, cropNanos.sum(), croppedTiles.intValue());
+    }
+
+    void candidatesRejected(int count) {
+        listener.candidatesRejected(count);
+    }
+
+    void duplicatesDropped(int count) {
+        listener.duplicatesDropped(count);
+    }
+
+    /**
+     * A running phase. Progress may be reported from multiple threads.
+     */
+    final class Span {
+        private final MosaicListener.Phase phase;
+        private final int total;
+        private final long start;
+        private final PhaseEvent event;
+        private final AtomicInteger completed = new AtomicInteger();
+
+        private Span(MosaicListener.Phase phase, int total) {
+            this.phase = phase;
+            this.total = total;
+            this.event = new PhaseEvent();
+            event.begin();
+            listener.phaseStarted(phase);
+            this.start = System.nanoTime();
+        }
+
+        void completed(int items) {
+            listener.progress(phase, completed.addAndGet(items), total);
+        }
+
+        void finish(int count) {
+            long nanos = System.nanoTime() - start;
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase.name();
+                event.count = count;
+                event.totalTime = nanos;
+                event.commit();
+            }
+            listener.phaseFinished(phase, Duration.ofNanos(nanos), count);
+        }
+    }
+
+    @Name("hu.aestallon.psifidoto.MosaicPhase")
+    @Label("Mosaic Phase")
+    @Category("Psifidoto")
+    @Description("A phase of building or exporting a mosaic")
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Count")
+        @Description("The number of tiles, cells or rows processed")
+        int count;
+
+        @Label("Total Time")
+        @Description("The time spent in the phase, summed across threads if it ran interleaved with others")
+        @Timespan
+        long totalTime;
+    }
+
+    @Name("hu.aestallon.psifidoto.TileLoad")
+    @Label("Tile Load")
+    @Category("Psifidoto")
+    @Description("Decoding and cropping a single tile image")
+    static final class TileLoadEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Decode Time")
+        @Timespan
+        long decodeTime;
+
+        @Label("Crop Time")
+        @Timespan
+        long cropTime;
+
+        @Label("Cached")
+        @Description("Whether the tile's colours were taken from the tile cache")
+        boolean cached;
+    }
+}
@@ -0,0 +1,76 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * RGB space divided into {@value #LEVELS}<sup>3</sup> buckets, each holding the
+ * tiles closest to its centre colour, up to {@value #LIST_LENGTH} of them.
+ *
+ * <p>Looking up the short list of a colour takes constant time. The best tile
+ * of a list is never farther from a colour of the bucket than the true nearest
+ * tile plus the bucket diagonal (about 14 in RGB units); the table is thus
+ * meant for matching when speed matters more than finding the very best tile.
+ *
+ * <p>The short list of a bucket is found on its first lookup, so a mosaic pays
+ * only for the buckets its cell colours fall into, at most one search per
+ * cell, and later mosaics of the same library reuse them. The table may be
+ * queried concurrently.
+ */
+final class ColourLookupTable {
+    static final int BITS = 5;
+    static final int LEVELS = 1 << BITS;
+    static final int LIST_LENGTH = 8;
+
+    private static final int SHIFT = 8 - BITS;
+
+    private final TileColourIndex index;
+    private final int listLength;
+    // tree positions of the tiles in the index, nearest first; null for the
+    // buckets not looked up yet
+    private final AtomicReferenceArray<int[]> lists;
+
+    ColourLookupTable(TileColourIndex index) {
+        this.index = index;
+        this.listLength = Math.min(LIST_LENGTH, index.size());
+        this.lists = new AtomicReferenceArray<>(LEVELS * LEVELS * LEVELS);
+    }
+
+    TileColourIndex index() {
+        return index;
+    }
+
+    /**
+     * Returns the short list of the bucket of {@code rgb}: the tree positions
+     * of the tiles closest to the centre of the bucket, nearest first. The list
+     * is shared, and must not be modified.
+     */
+    int[] listOf(int rgb) {
+        int bucket = bucketOf(rgb);
+        int[] list = lists.get(bucket);
+        if (list != null) return list;
+
+        list = new int[listLength];
+        TileColourIndex.Cursor cursor = index.nearestFirst(centreOf(bucket));
+        for (int k = 0; k < listLength; k++) {
+            list[k] = cursor.nextPosition();
+        }
+        // threads racing for the same bucket find the same list, so it does
+        // not matter whose is kept
+        return lists.compareAndSet(bucket, null, list) ? list : lists.get(bucket);
+    }
+
+    private static int bucketOf(int rgb) {
+        int r = (rgb >> (16 + SHIFT)) & (LEVELS - 1);
+        int g = (rgb >> (8 + SHIFT)) & (LEVELS - 1);
+        int b = (rgb >> SHIFT) & (LEVELS - 1);
+        return (r * LEVELS + g) * LEVELS + b;
+    }
+
+    private static int centreOf(int bucket) {
+        int half = 1 << (SHIFT - 1);
+        int r = (bucket / (LEVELS * LEVELS)) << SHIFT | half;
+        int g = (bucket / LEVELS % LEVELS) << SHIFT | half;
+        int b = (bucket % LEVELS) << SHIFT | half;
+        return r << 16 | g << 8 | b;
+    }
+}
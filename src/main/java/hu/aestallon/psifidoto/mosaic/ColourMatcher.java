@@ -0,0 +1,20 @@
+package hu.aestallon.psifidoto.mosaic;
+
+/**
+ * Matches tiles by the distance between their average colour and the average
+ * colour of the cell.
+ */
+final class ColourMatcher implements TileMatcher {
+    private final IntGrid colourGrid;
+    private final TileColourIndex index;
+
+    ColourMatcher(IntGrid colourGrid, TileLibrary library) {
+        this.colourGrid = colourGrid;
+        this.index = library.colourIndex();
+    }
+
+    @Override
+    public Candidates candidates(int x, int y) {
+        return index.nearestFirst(colourGrid.get(x, y));
+    }
+}
@@ -0,0 +1,277 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import hu.aestallon.psifidoto.util.io.PngStreamWriter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+/**
+ * Writes a mosaic as a Deep Zoom image: a {@code .dzi} descriptor and a
+ * directory of PNG web tiles for every zoom level, each level half the size of
+ * the next one, down to a single pixel.
+ *
+ * <p>Web tiles are rendered straight from the placed tiles, never from a full
+ * size image of the mosaic. Every distinct tile gets a {@link TileMipmap} of its
+ * resized image. A web tile pixel at a level scaled down by {@code f} is the
+ * average of the part of every tile it covers, read from the mipmap level
+ * whose pixels are about half as large as {@code f}, so each pixel takes only
+ * a handful of reads at any level.
+ *
+ * <p>Web tiles are written in the order of the last row of tiles they cover,
+ * the web tiles of all levels done with a row in parallel. Mipmap levels are
+ * dropped as soon as no web tile left reads them, so the finest levels are
+ * only held for the tiles of the current band of rows, and coarser levels for
+ * taller bands. Memory use therefore grows with the width of the mosaic, but
+ * not with its height.
+ */
+final class DeepZoomExporter {
+    static final int WEB_TILE_SIZE = 256;
+
+    private final MosaicRenderer renderer;
+    private final Grid<Tile> tileGrid;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int width;
+    private final int height;
+    private final int maxLevel;
+    private final int mipmapLevelCount;
+    private final Map<Tile, TileMipmap> mipmaps;
+
+    DeepZoomExporter(MosaicRenderer renderer, Grid<Tile> tileGrid, int tileWidth, int tileHeight) {
+        this.renderer = renderer;
+        this.tileGrid = tileGrid;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.width = renderer.width();
+        this.height = renderer.height();
+        this.maxLevel = 32 - Integer.numberOfLeadingZeros(Math.max(width, height) - 1);
+        this.mipmapLevelCount = TileMipmap.levelCountOf(tileWidth, tileHeight);
+        this.mipmaps = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * The number of web tiles of all levels.
+     */
+    int webTileCount() {
+        int count = 0;
+        for (int level = 0; level <= maxLevel; level++) {
+            count += columnsOf(level) * rowsOf(level);
+        }
+        return count;
+    }
+
+    /**
+     * Writes {@code <name>.dzi} and the {@code <name>_files} directory into
+     * {@code directory}, rendering web tiles on the given pool. Every web tile
+     * written is reported to {@code webTilesWritten}, from the thread that
+     * wrote it.
+     */
+    void export(Path directory, String name, ForkJoinPool pool, IntConsumer webTilesWritten) throws IOException {
+        Path files = directory.resolve(name + "_files");
+        List<List<int[]>> webTilesByLastRow = new ArrayList<>(tileGrid.height());
+        for (int row = 0; row < tileGrid.height(); row++) {
+            webTilesByLastRow.add(new ArrayList<>());
+        }
+        for (int level = 0; level <= maxLevel; level++) {
+            Files.createDirectories(files.resolve(Integer.toString(level)));
+            for (int row = 0; row < rowsOf(level); row++) {
+                List<int[]> webTiles = webTilesByLastRow.get(lastGridRowOf(level, row));
+                for (int column = 0; column < columnsOf(level); column++) {
+                    webTiles.add(new int[] {level, column, row});
+                }
+            }
+        }
+        Map<Tile, int[]> lastReads = lastReadsOfMipmapLevels();
+        List<List<Tile>> trimmedAfterRow = new ArrayList<>(tileGrid.height());
+        for (int row = 0; row < tileGrid.height(); row++) {
+            trimmedAfterRow.add(new ArrayList<>());
+        }
+        lastReads.forEach((tile, rows) -> Arrays.stream(rows)
+                .filter(row -> row >= 0)
+                .distinct()
+                .forEach(row -> trimmedAfterRow.get(row).add(tile)));
+
+        try {
+            for (int row = 0; row < tileGrid.height(); row++) {
+                List<int[]> webTiles = webTilesByLastRow.get(row);
+                if (!webTiles.isEmpty()) {
+                    pool.submit(() -> webTiles.parallelStream().forEach(webTile -> {
+                        writeWebTile(files, webTile[0], webTile[1], webTile[2]);
+                        webTilesWritten.accept(1);
+                    })).join();
+                }
+                for (Tile tile : trimmedAfterRow.get(row)) {
+                    trim(tile, lastReads.get(tile), row);
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Files.writeString(directory.resolve(name + ".dzi"), descriptor(), StandardCharsets.UTF_8);
+    }
+
+    private String descriptor() {
+        return """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <Image xmlns="http://schemas.microsoft.com/deepzoom/2008" Format="png" Overlap="0" TileSize="%d">
+                  <Size Width="%d" Height="%d"/>
+                </Image>
+                """.formatted(WEB_TILE_SIZE, width, height);
+    }
+
+    private int levelWidth(int level) {
+        return ceilDiv(width, 1 << (maxLevel - level));
+    }
+
+    private int levelHeight(int level) {
+        return ceilDiv(height, 1 << (maxLevel - level));
+    }
+
+    private int columnsOf(int level) {
+        return ceilDiv(levelWidth(level), WEB_TILE_SIZE);
+    }
+
+    private int rowsOf(int level) {
+        return ceilDiv(levelHeight(level), WEB_TILE_SIZE);
+    }
+
+    // the last row of tiles covered by a row of web tiles of the level
+    private int lastGridRowOf(int level, int webTileRow) {
+        long bottom = Math.min(height, ((long) webTileRow + 1) * WEB_TILE_SIZE << (maxLevel - level));
+        return (int) ((bottom - 1) / tileHeight);
+    }
+
+    // the mipmap level read by web tiles of the level scaled down by 2^scaleLevel
+    private int mipmapLevelOf(int scaleLevel) {
+        return Math.max(0, Math.min(scaleLevel - 1, mipmapLevelCount - 1));
+    }
+
+    // the last row of tiles whose web tiles read each mipmap level of a tile,
+    // or -1 for the levels never read
+    private Map<Tile, int[]> lastReadsOfMipmapLevels() {
+        Map<Tile, int[]> lastReads = new HashMap<>();
+        for (int row = 0; row < tileGrid.height(); row++) {
+            // the same for every tile of the row
+            int[] rowReads = new int[mipmapLevelCount];
+            Arrays.fill(rowReads, -1);
+            int bottom = (row + 1) * tileHeight - 1;
+            for (int level = 0; level <= maxLevel; level++) {
+                int scaleLevel = maxLevel - level;
+                int mipmapLevel = mipmapLevelOf(scaleLevel);
+                int lastRow = lastGridRowOf(level, (bottom >> scaleLevel) / WEB_TILE_SIZE);
+                rowReads[mipmapLevel] = Math.max(rowReads[mipmapLevel], lastRow);
+            }
+            for (int column = 0; column < tileGrid.width(); column++) {
+                if (!tileGrid.contains(column, row)) continue;
+                int[] reads = lastReads.computeIfAbsent(tileGrid.get(column, row).unwrap(), tile -> rowReads.clone());
+                for (int level = 0; level < reads.length; level++) {
+                    reads[level] = Math.max(reads[level], rowReads[level]);
+                }
+            }
+        }
+        return lastReads;
+    }
+
+    // drops the mipmap levels of the tile no longer read once the given row of
+    // tiles is done, or the whole mipmap if none are
+    private void trim(Tile tile, int[] lastReads, int row) {
+        int finest = 0;
+        while (finest < lastReads.length && lastReads[finest] <= row) {
+            finest++;
+        }
+        if (finest == lastReads.length) {
+            mipmaps.remove(tile);
+        } else {
+            int level = finest;
+            mipmaps.computeIfPresent(tile, (t, mipmap) -> mipmap.withoutLevelsBelow(level));
+        }
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    private void writeWebTile(Path files, int level, int column, int row) {
+        int x0 = column * WEB_TILE_SIZE, y0 = row * WEB_TILE_SIZE;
+        int w = Math.min(WEB_TILE_SIZE, levelWidth(level) - x0);
+        int h = Math.min(WEB_TILE_SIZE, levelHeight(level) - y0);
+        int[] pixels = new int[w * h];
+        int scaleLevel = maxLevel - level;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                pixels[y * w + x] = pixel(x0 + x, y0 + y, scaleLevel);
+            }
+        }
+        Path file = files.resolve(Integer.toString(level)).resolve(column + "_" + row + ".png");
+        try (PngStreamWriter writer = PngStreamWriter.create(file, w, h)) {
+            writer.writeRows(pixels, 0, h);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // the pixel of the level scaled down by 2^scaleLevel: the average of the
+    // tiles in the area it covers, weighted by the area of their overlap
+    private int pixel(int x, int y, int scaleLevel) {
+        int f = 1 << scaleLevel;
+        int left = x * f, right = Math.min(width, left + f);
+        int top = y * f, bottom = Math.min(height, top + f);
+        long[] sums = new long[3];
+        long area = 0;
+        for (int row = top / tileHeight; row <= (bottom - 1) / tileHeight; row++) {
+            int tileTop = row * tileHeight;
+            int y0 = Math.max(top, tileTop) - tileTop, y1 = Math.min(bottom, tileTop + tileHeight) - tileTop;
+            for (int column = left / tileWidth; column <= (right - 1) / tileWidth; column++) {
+                int tileLeft = column * tileWidth;
+                int x0 = Math.max(left, tileLeft) - tileLeft, x1 = Math.min(right, tileLeft + tileWidth) - tileLeft;
+                area += (long) (x1 - x0) * (y1 - y0);
+                if (!tileGrid.contains(column, row)) continue;
+                addOverlap(mipmapOf(tileGrid.get(column, row).unwrap()), scaleLevel, x0, x1, y0, y1, sums);
+            }
+        }
+        long half = area / 2;
+        return (int) ((sums[0] + half) / area) << 16
+                | (int) ((sums[1] + half) / area) << 8
+                | (int) ((sums[2] + half) / area);
+    }
+
+    // adds the colour sums of the region [x0, x1) x [y0, y1) of the tile, read
+    // from the mipmap level of the web tile's scale: each pixel of that level
+    // is weighted by how much of it lies within the region
+    private void addOverlap(TileMipmap mipmap, int scaleLevel, int x0, int x1, int y0, int y1, long[] sums) {
+        int level = mipmapLevelOf(scaleLevel);
+        int size = 1 << level;
+        for (int py = y0 >> level; py <= (y1 - 1) >> level; py++) {
+            int h = Math.min(y1, (py + 1) * size) - Math.max(y0, py * size);
+            for (int px = x0 >> level; px <= (x1 - 1) >> level; px++) {
+                long weight = (long) h * (Math.min(x1, (px + 1) * size) - Math.max(x0, px * size));
+                int rgb = mipmap.pixel(level, px, py);
+                sums[0] += (rgb >> 16 & 0xFF) * weight;
+                sums[1] += (rgb >> 8 & 0xFF) * weight;
+                sums[2] += (rgb & 0xFF) * weight;
+            }
+        }
+    }
+
+    private TileMipmap mipmapOf(Tile tile) {
+        TileMipmap mipmap = mipmaps.get(tile);
+        if (mipmap == null) {
+            // like the renderer's resized tiles, a race only wastes some work
+            mipmap = new TileMipmap(renderer.pixelsOf(tile), tileWidth, tileHeight);
+            TileMipmap previous = mipmaps.putIfAbsent(tile, mipmap);
+            if (previous != null) mipmap = previous;
+        }
+        return mipmap;
+    }
+}
@@ -0,0 +1,92 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Matches tiles by comparing {@link RegionDescriptor}s.
+ *
+ * <p>Candidates are pre-selected by average colour: the nearest tiles are taken
+ * from a {@link TileColourIndex} in batches of {@value #BATCH_SIZE}, and every
+ * batch is re-ranked by descriptor distance before it is handed out. Thus the
+ * order is exact within a batch and approximate across batches, while the cost
+ * of a cell stays close to that of plain colour matching.
+ */
+final class DescriptorMatcher implements TileMatcher {
+    static final int BATCH_SIZE = 32;
+
+    private final IntGrid colourGrid;
+    // one descriptor per cell, in row-major order
+    private final float[] cellDescriptors;
+    private final TileColourIndex index;
+    // indexed by the tiles' positions in the colour index
+    private final DescriptorTable tileDescriptors;
+
+    DescriptorMatcher(IntGrid colourGrid, float[] cellDescriptors, TileLibrary library) {
+        this.colourGrid = colourGrid;
+        this.cellDescriptors = cellDescriptors;
+        this.index = library.colourIndex();
+        this.tileDescriptors = library.descriptors();
+    }
+
+    @Override
+    public TileMatcher.Candidates candidates(int x, int y) {
+        return new BatchedCandidates(colourGrid.indexOf(x, y));
+    }
+
+    private final class BatchedCandidates implements TileMatcher.Candidates {
+        private final TileColourIndex.Cursor cursor;
+        private final int queryOffset;
+        private final int[] batch = new int[BATCH_SIZE];
+        private final float[] distances = new float[BATCH_SIZE];
+        private int batchSize;
+        private int batchIndex;
+        private float lastCost = -1;
+
+        private BatchedCandidates(int cell) {
+            this.cursor = index.nearestFirst(colourGrid.get(cell));
+            this.queryOffset = cell * RegionDescriptor.LENGTH;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (batchIndex == batchSize) fillBatch();
+            return batchIndex < batchSize;
+        }
+
+        @Override
+        public Tile next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            lastCost = distances[batchIndex];
+            return index.tileAt(batch[batchIndex++]);
+        }
+
+        @Override
+        public float cost() {
+            return lastCost;
+        }
+
+        private void fillBatch() {
+            batchSize = 0;
+            batchIndex = 0;
+            int position;
+            while (batchSize < BATCH_SIZE && (position = cursor.nextPosition()) >= 0) {
+                batch[batchSize++] = position;
+            }
+            tileDescriptors.distances(cellDescriptors, queryOffset, batch, batchSize, distances);
+
+            // insertion sort: the batch is small and already roughly in order
+            for (int i = 1; i < batchSize; i++) {
+                int p = batch[i];
+                float d = distances[i];
+                int j = i - 1;
+                while (j >= 0 && distances[j] > d) {
+                    batch[j + 1] = batch[j];
+                    distances[j + 1] = distances[j];
+                    j--;
+                }
+                batch[j + 1] = p;
+                distances[j + 1] = d;
+            }
+        }
+    }
+}
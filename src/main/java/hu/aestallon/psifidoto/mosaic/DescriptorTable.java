@@ -0,0 +1,50 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.util.Arrays;
+
+/**
+ * {@link RegionDescriptor}s of a fixed number of items, stored component-wise:
+ * the k<sup>th</sup> component of every descriptor sits in one contiguous
+ * {@code float} array.
+ *
+ * <p>Distances are computed in batches, one component at a time across all
+ * requested items, so the inner loops are simple, branch-free float loops that
+ * the JIT can unroll. They are not vectorised: reading the items through
+ * {@code indices} is a gather, which C2 does not auto-vectorise.
+ */
+final class DescriptorTable {
+    private final int size;
+    private final float[][] components;
+
+    DescriptorTable(int size) {
+        this.size = size;
+        this.components = new float[RegionDescriptor.LENGTH][size];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void set(int index, float[] descriptor) {
+        for (int k = 0; k < RegionDescriptor.LENGTH; k++) {
+            components[k][index] = descriptor[k];
+        }
+    }
+
+    /**
+     * For every {@code i < count}, writes the squared euclidean distance
+     * between the query descriptor (starting at {@code queryOffset}) and the
+     * descriptor at {@code indices[i]} into {@code out[i]}.
+     */
+    void distances(float[] query, int queryOffset, int[] indices, int count, float[] out) {
+        Arrays.fill(out, 0, count, 0f);
+        for (int k = 0; k < RegionDescriptor.LENGTH; k++) {
+            final float q = query[queryOffset + k];
+            final float[] column = components[k];
+            for (int i = 0; i < count; i++) {
+                float d = column[indices[i]] - q;
+                out[i] += d * d;
+            }
+        }
+    }
+}
@@ -1,19 +1,21 @@
 package hu.aestallon.psifidoto.mosaic;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
 public final class Grid<E> {
     private final int width;
     private final int height;
-    private final SortedSet<Coordinate<E>> coordinates;
+    // row-major: the cell at (x, y) lives at y * width + x
+    private final Coordinate<E>[] cells;
 
+    @SuppressWarnings("unchecked")
     public Grid(int width, int height) {
         this.width = width;
         this.height = height;
-        coordinates = new TreeSet<>();
+        this.cells = (Coordinate<E>[]) new Coordinate<?>[width * height];
     }
 
     public int width() {
@@ -25,31 +27,53 @@ public final class Grid<E> {
     }
 
     public boolean add(int x, int y, E e) {
-        if (x < 0 || x >= width || y < 0 || y >= height) {
-            throw new IllegalArgumentException("Illegal coordinates!");
-        }
+        checkBounds(x, y);
         if (e == null) throw new NullPointerException("Cannot add null element to grid!");
-        return coordinates.add(new Coordinate<>(x, y, e));
+        int index = y * width + x;
+        if (cells[index] != null) return false;
+        cells[index] = new Coordinate<>(x, y, e);
+        return true;
+    }
+
+    public boolean contains(int x, int y) {
+        return x >= 0 && x < width && y >= 0 && y < height && cells[y * width + x] != null;
     }
 
     public Coordinate<E> get(int x, int y) {
-        return coordinates.stream().filter(c -> c.x == x && c.y == y)
-                .findFirst()
-                .orElseThrow(IllegalArgumentException::new);
+        checkBounds(x, y);
+        Coordinate<E> coordinate = cells[y * width + x];
+        if (coordinate == null) throw new IllegalArgumentException();
+        return coordinate;
     }
 
-    public SortedSet<Coordinate<E>> neighboursOf(Coordinate<E> coord) {
+    public List<Coordinate<E>> neighboursOf(Coordinate<E> coord) {
         return neighboursOf(coord.x, coord.y);
     }
 
-    public SortedSet<Coordinate<E>> neighboursOf(int x, int y) {
-        return coordinates.stream()
-                .filter(
-                        c -> c.x - x <= 1 && c.x - x >= -1 &&
-                             c.y - y <= 1 && c.y - y >= -1 &&
-                             !(c.x == x && c.y == y)
-                )
-                .collect(Collectors.toCollection(TreeSet::new));
+    public List<Coordinate<E>> neighboursOf(int x, int y) {
+        List<Coordinate<E>> neighbours = new ArrayList<>(8);
+        forEachNeighbour(x, y, neighbours::add);
+        return neighbours;
+    }
+
+    /**
+     * Visits the occupied cells surrounding {@code (x, y)} in the same order
+     * {@link #neighboursOf(int, int)} returns them, without collecting them.
+     */
+    public void forEachNeighbour(int x, int y, Consumer<Coordinate<E>> action) {
+        for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+            for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+                if (nx == x && ny == y) continue;
+                Coordinate<E> c = cells[ny * width + nx];
+                if (c != null) action.accept(c);
+            }
+        }
+    }
+
+    private void checkBounds(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IllegalArgumentException("Illegal coordinates!");
+        }
     }
 
     static class Coordinate<E> implements Comparable<Coordinate<E>> {
@@ -0,0 +1,101 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * A multi-index hash table of {@link PerceptualHash perceptual hashes}, finding
+ * stored hashes within a Hamming distance of a query.
+ *
+ * <p>Hashes are split into four 16-bit chunks, each indexed by a table of its
+ * own. Two hashes at most {@code d} bits apart must differ in at most
+ * {@code d / 4} bits of one of the chunks, so a query only looks at the buckets
+ * of chunk values that close to its own. Unlike a tree over the whole hash,
+ * this stays selective even though the distances between unrelated hashes all
+ * crowd around 32 bits.
+ */
+final class HashIndex<T> {
+    private static final int CHUNKS = 4;
+    private static final int CHUNK_BITS = Long.SIZE / CHUNKS;
+    private static final int[] EMPTY = new int[0];
+
+    private long[] hashes;
+    private Object[] values;
+    private int size;
+    // entry indices by chunk and chunk value; buckets are allocated when first
+    // used, and grow by doubling
+    private final int[][][] buckets;
+    private final int[][] bucketSizes;
+
+    HashIndex() {
+        this.hashes = new long[16];
+        this.values = new Object[16];
+        this.buckets = new int[CHUNKS][1 << CHUNK_BITS][];
+        this.bucketSizes = new int[CHUNKS][1 << CHUNK_BITS];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void add(long hash, T value) {
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        hashes[size] = hash;
+        values[size] = value;
+        for (int chunk = 0; chunk < CHUNKS; chunk++) {
+            int key = chunkOf(hash, chunk);
+            int[] bucket = buckets[chunk][key];
+            int count = bucketSizes[chunk][key];
+            if (bucket == null) {
+                bucket = buckets[chunk][key] = new int[2];
+            } else if (count == bucket.length) {
+                bucket = buckets[chunk][key] = Arrays.copyOf(bucket, count * 2);
+            }
+            bucket[count] = size;
+            bucketSizes[chunk][key] = count + 1;
+        }
+        size++;
+    }
+
+    /**
+     * Returns a value accepted by {@code filter} whose hash is within
+     * {@code maxDistance} of the given one, or {@code null} if there is none.
+     */
+    T findWithin(long hash, int maxDistance, Predicate<? super T> filter) {
+        if (maxDistance < 0) return null;
+        int chunkDistance = Math.min(CHUNK_BITS, maxDistance / CHUNKS);
+        for (int chunk = 0; chunk < CHUNKS; chunk++) {
+            T found = search(chunk, chunkOf(hash, chunk), 0, chunkDistance, hash, maxDistance, filter);
+            if (found != null) return found;
+        }
+        return null;
+    }
+
+    // looks at the buckets of every chunk value reached from key by flipping at
+    // most flips of its bits, from bit firstBit up
+    @SuppressWarnings("unchecked")
+    private T search(int chunk, int key, int firstBit, int flips,
+                     long hash, int maxDistance, Predicate<? super T> filter) {
+        int[] bucket = buckets[chunk][key];
+        if (bucket == null) bucket = EMPTY;
+        for (int i = 0, count = bucketSizes[chunk][key]; i < count; i++) {
+            int entry = bucket[i];
+            if (PerceptualHash.distance(hash, hashes[entry]) <= maxDistance && filter.test((T) values[entry])) {
+                return (T) values[entry];
+            }
+        }
+        if (flips == 0) return null;
+        for (int bit = firstBit; bit < CHUNK_BITS; bit++) {
+            T found = search(chunk, key ^ (1 << bit), bit + 1, flips - 1, hash, maxDistance, filter);
+            if (found != null) return found;
+        }
+        return null;
+    }
+
+    private static int chunkOf(long hash, int chunk) {
+        return (int) (hash >>> (chunk * CHUNK_BITS)) & ((1 << CHUNK_BITS) - 1);
+    }
+}
@@ -2,6 +2,12 @@ package hu.aestallon.psifidoto.mosaic;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 
 public class ImageUtils {
     private ImageUtils() {}
@@ -9,9 +15,10 @@ public class ImageUtils {
     private static Color calculateAverageColour(BufferedImage image) {
         long r = 0, g = 0, b = 0;
         long pixelCount = (long) image.getHeight() * image.getWidth();
-        for (int i = 0; i < image.getWidth(); i++) {
-            for (int j = 0; j < image.getHeight(); j++) {
-                int pixel = image.getRGB(i, j);
+        int[] row = new int[image.getWidth()];
+        for (int j = 0; j < image.getHeight(); j++) {
+            readRow(image, 0, j, row.length, row);
+            for (int pixel : row) {
                 r += (pixel >> 16) & 0xFF;
                 g += (pixel >> 8) & 0xFF;
                 b += pixel & 0xFF;
@@ -22,16 +29,32 @@ public class ImageUtils {
     }
 
     public static Color calculateAverageColourSquared(BufferedImage image) {
-        return calculateAverageColourOfRegion(image, 0, image.getWidth(), 0, image.getHeight());
+        return new Color(averageRgbOf(image));
     }
 
     public static Color calculateAverageColourOfRegion(BufferedImage image, int x0, int x1, int y0, int y1) {
+        return new Color(averageRgbOfRegion(image, x0, x1, y0, y1));
+    }
+
+    /**
+     * Returns the root mean square colour of the image as a packed
+     * {@code 0xRRGGBB} int.
+     */
+    static int averageRgbOf(BufferedImage image) {
+        return averageRgbOfRegion(image, 0, image.getWidth(), 0, image.getHeight());
+    }
+
+    /**
+     * Returns the root mean square colour of the region {@code [x0, x1) x
+     * [y0, y1)} of the image as a packed {@code 0xRRGGBB} int.
+     */
+    static int averageRgbOfRegion(BufferedImage image, int x0, int x1, int y0, int y1) {
         long r = 0, g = 0, b = 0;
         long pixelCount = (long) (x1 - x0) * (y1 - y0);
-        for (int i = x0; i < x1; i++) {
-            for (int j = y0; j < y1; j++) {
-                int pixel = image.getRGB(i, j);
-
+        int[] row = new int[x1 - x0];
+        for (int j = y0; j < y1; j++) {
+            readRow(image, x0, j, row.length, row);
+            for (int pixel : row) {
                 int pixelR = (pixel >> 16) & 0xFF;
                 r += pixelR * pixelR;
 
@@ -44,6 +67,92 @@ public class ImageUtils {
         }
         r = r / pixelCount; g = g / pixelCount; b = b / pixelCount;
         r = Math.round(Math.sqrt(r)); g = Math.round(Math.sqrt(g)); b = Math.round(Math.sqrt(b));
-        return new Color((int) r, (int) g, (int) b);
+        return rgb((int) r, (int) g, (int) b);
+    }
+
+    static int rgb(int r, int g, int b) {
+        return r << 16 | g << 8 | b;
+    }
+
+    /**
+     * The squared euclidean distance of two packed {@code 0xRRGGBB} colours;
+     * the top bytes are ignored.
+     */
+    static int squaredDistance(int rgb, int another) {
+        int dR = ((rgb >> 16) & 0xFF) - ((another >> 16) & 0xFF);
+        int dG = ((rgb >> 8) & 0xFF) - ((another >> 8) & 0xFF);
+        int dB = (rgb & 0xFF) - (another & 0xFF);
+        return dR * dR + dG * dG + dB * dB;
+    }
+
+    /**
+     * Reads {@code width} pixels of row {@code y}, starting at {@code x}, into
+     * {@code out} as {@code 0xRRGGBB} ints (the top byte is unspecified).
+     *
+     * <p>Integer RGB(A) and byte BGR(A) images are read straight from their
+     * data buffer; every other image type goes through {@code getRGB}.
+     */
+    static void readRow(BufferedImage image, int x, int y, int width, int[] out) {
+        WritableRaster raster = image.getRaster();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        int sampleX = x - raster.getSampleModelTranslateX();
+        int sampleY = y - raster.getSampleModelTranslateY();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB -> {
+                var sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+                int start = dataBuffer.getOffset() + sampleY * sampleModel.getScanlineStride() + sampleX;
+                System.arraycopy(((DataBufferInt) dataBuffer).getData(), start, out, 0, width);
+            }
+            case BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR -> {
+                var sampleModel = (ComponentSampleModel) raster.getSampleModel();
+                byte[] data = ((DataBufferByte) dataBuffer).getData();
+                int pixelStride = sampleModel.getPixelStride();
+                int[] bandOffsets = sampleModel.getBandOffsets();
+                int rOffset = bandOffsets[0], gOffset = bandOffsets[1], bOffset = bandOffsets[2];
+                int p = dataBuffer.getOffset() + sampleY * sampleModel.getScanlineStride() + sampleX * pixelStride;
+                for (int i = 0; i < width; i++, p += pixelStride) {
+                    out[i] = (data[p + rOffset] & 0xFF) << 16 | (data[p + gOffset] & 0xFF) << 8 | (data[p + bOffset] & 0xFF);
+                }
+            }
+            default -> image.getRGB(x, y, width, 1, out, 0, width);
+        }
+    }
+
+    /**
+     * Scales the image down so that its longer side is at most {@code maxSide}
+     * pixels, keeping its aspect ratio.
+     */
+    public static BufferedImage thumbnailOf(BufferedImage image, int maxSide) {
+        double scale = Math.min(1d, (double) maxSide / Math.max(image.getWidth(), image.getHeight()));
+        return resize(
+                image,
+                Math.max(1, (int) Math.round(image.getWidth() * scale)),
+                Math.max(1, (int) Math.round(image.getHeight() * scale))
+        );
+    }
+
+    /**
+     * Resizes the image to the given dimensions. Large reductions are done in
+     * successive halving steps, so that bilinear filtering never skips over
+     * source pixels.
+     */
+    public static BufferedImage resize(BufferedImage image, int width, int height) {
+        BufferedImage current = image;
+        int w = image.getWidth(), h = image.getHeight();
+        while (w / 2 >= width && h / 2 >= height) {
+            w /= 2;
+            h /= 2;
+            current = draw(current, w, h);
+        }
+        return draw(current, width, height);
+    }
+
+    private static BufferedImage draw(BufferedImage image, int width, int height) {
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = result.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, 0, 0, image.getWidth(), image.getHeight(), null);
+        g.dispose();
+        return result;
     }
 }
@@ -0,0 +1,72 @@
+package hu.aestallon.psifidoto.mosaic;
+
+/**
+ * Primitive counterpart of {@link Grid}, storing one {@code int} per cell
+ * (e.g. a packed {@code 0xRRGGBB} colour) in a row-major array.
+ */
+public final class IntGrid {
+    private final int width;
+    private final int height;
+    private final int[] cells;
+
+    public IntGrid(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.cells = new int[width * height];
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public int size() {
+        return cells.length;
+    }
+
+    public int get(int x, int y) {
+        return cells[indexOf(x, y)];
+    }
+
+    public int get(int index) {
+        return cells[index];
+    }
+
+    public void set(int x, int y, int value) {
+        cells[indexOf(x, y)] = value;
+    }
+
+    public int indexOf(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IllegalArgumentException("Illegal coordinates!");
+        }
+        return y * width + x;
+    }
+
+    public int xOf(int index) {
+        return index % width;
+    }
+
+    public int yOf(int index) {
+        return index / width;
+    }
+
+    /**
+     * Writes the row-major indices of the cells surrounding {@code (x, y)}
+     * into {@code out} (which must hold at least 8 elements) and returns how
+     * many were written.
+     */
+    public int neighbourIndices(int x, int y, int[] out) {
+        int count = 0;
+        for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+            for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+                if (nx == x && ny == y) continue;
+                out[count++] = ny * width + nx;
+            }
+        }
+        return count;
+    }
+}
@@ -1,25 +1,91 @@
 package hu.aestallon.psifidoto.mosaic;
 
-import javax.swing.*;
+import hu.aestallon.psifidoto.util.io.PngStreamWriter;
+
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.lang.reflect.InvocationTargetException;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
 import java.util.List;
-import java.util.function.Supplier;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class Mosaic {
+    // the largest width of preview images, in pixels
+    static final int PREVIEW_WIDTH = 1024;
 
     public static MosaicBuilder newInstance() {
         return new MosaicBuilder();
     }
 
-    private final BufferedImage image;
-    private final Set<Tile> tiles;
+    /**
+     * How tiles are compared against the cells of the target image.
+     */
+    public enum Matching {
+        /** By the average colour of the whole tile and cell. */
+        AVERAGE_COLOUR,
+        /** By the colours of a 3x3 grid of regions within the tile and cell. */
+        REGION_DESCRIPTOR,
+        /**
+         * By average colour, approximately: candidates are taken from short
+         * lists kept for a 32x32x32 quantisation of RGB space, so finding
+         * them takes constant time once a list is found. Lists are found on
+         * first use and kept by the tile library. Meant for fast previews.
+         */
+        QUANTISED_COLOUR
+    }
+
+    /**
+     * How tiles are assigned to the cells of the target image.
+     */
+    public enum Placement {
+        /** Greedily, cell by cell, spiralling outwards from the centre. */
+        CENTRE_BIASED,
+        /**
+         * By approximately minimising the total matching cost over all cells,
+         * where every tile may be used only once within each block of
+         * minimum repetition distance x minimum repetition distance cells.
+         * Unlike greedy placement, a cell may give up its best tile to a
+         * cell matching it even better. Tile usage is not balanced otherwise:
+         * with a minimum repetition distance of at most 1, every cell simply
+         * gets its best match. Slower than {@link #CENTRE_BIASED}.
+         */
+        GLOBAL_ASSIGNMENT,
+        /**
+         * Greedily, like {@link #CENTRE_BIASED}, but in regions of the grid
+         * processed in parallel. The layout of the regions depends on the
+         * placement seed.
+         */
+        PARALLEL_REGIONS
+    }
+
+    /**
+     * Tile matching and placement parameters.
+     */
+    record Settings(Matching matching,
+                    Placement placement,
+                    int minRepetitionDistance,
+                    Duration placementTimeBudget,
+                    long placementSeed) {
+
+        static Settings defaults(int minRepetitionDistance) {
+            return new Settings(
+                    Matching.AVERAGE_COLOUR,
+                    Placement.CENTRE_BIASED,
+                    minRepetitionDistance,
+                    Duration.ofSeconds(2),
+                    0L
+            );
+        }
+    }
+
+    private final TileLibrary tiles;
 
-    private final Grid<Color> colourGrid;
+    private final IntGrid colourGrid;
     private final Grid<Tile> tileGrid;
 
     private final int tileHeight;
@@ -27,63 +93,106 @@ public class Mosaic {
     private final int rowCount;
     private final int columnCount;
 
+    private final BuildMonitor monitor;
+    // null if there is none
+    private final TileAtlas atlas;
+
     public Mosaic(BufferedImage targetImage,
                   Stream<BufferedImage> tileImages,
                   int tileCount,
                   int minimumRepetitionDistance,
                   Tile.AspectRatio tileAspectRatio) {
-        this.image = targetImage;
-
-        int[] rowsAndCols = calculateRowsAndCols(tileCount, tileAspectRatio);
-        this.columnCount = rowsAndCols[0];
-        this.rowCount = rowsAndCols[1];
-
-        this.tileHeight = image.getHeight() / rowCount;
-        this.tileWidth = (int) Math.round(tileHeight * tileAspectRatio.ratio());
-
-        this.tiles = tileImages
-                .map(bi -> new Tile(bi, tileAspectRatio))
-                .collect(Collectors.toSet());
-
-        this.colourGrid = new Grid<>(columnCount, rowCount);
-        fillColourGrid();
-
-        this.tileGrid = new Grid<>(columnCount, rowCount);
-        fillImageGridCenterBiased(minimumRepetitionDistance);
+        this(
+                SummedAreaTable.ofSquaredChannels(targetImage),
+                layoutOf(targetImage, tileCount, tileAspectRatio),
+                TileLibrary.of(
+                        tileImages
+                                .map(bi -> new Tile(bi, tileAspectRatio))
+                                .collect(Collectors.toList()),
+                        tileAspectRatio
+                ),
+                Settings.defaults(minimumRepetitionDistance),
+                BuildMonitor.NONE
+        );
     }
 
-    // used by builder
-    Mosaic(Supplier<BufferedImage> targetImageSupplier,
-           Supplier<Set<Tile>> tileSupplier,
-           Tile.AspectRatio tileAspectRatio,
-           int tileCountHint,
-           int minRepetitionDistance) {
-        this.image = targetImageSupplier.get();
+    Mosaic(SummedAreaTable targetImage,
+           Layout layout,
+           TileLibrary tiles,
+           Settings settings,
+           BuildMonitor monitor) {
+        this(targetImage, layout, tiles, settings, monitor, null);
+    }
 
-        int[] rowsAndCols = calculateRowsAndCols(tileCountHint, tileAspectRatio);
-        this.columnCount = rowsAndCols[0];
-        this.rowCount = rowsAndCols[1];
+    // used by builder; the target image is only scanned here, and not kept
+    Mosaic(SummedAreaTable targetImage,
+           Layout layout,
+           TileLibrary tiles,
+           Settings settings,
+           BuildMonitor monitor,
+           TileAtlas atlas) {
+        this.monitor = monitor;
+        this.atlas = atlas;
 
-        this.tileHeight = image.getHeight() / rowCount;
-        this.tileWidth = (int) Math.round(tileHeight * tileAspectRatio.ratio());
+        this.columnCount = layout.columnCount();
+        this.rowCount = layout.rowCount();
+        this.tileHeight = layout.tileHeight();
+        this.tileWidth = layout.tileWidth();
 
-        this.tiles = tileSupplier.get();
+        this.tiles = tiles;
 
-        this.colourGrid = new Grid<>(columnCount, rowCount);
-        fillColourGrid();
+        this.colourGrid = new IntGrid(columnCount, rowCount);
+        BuildMonitor.Span scanning = monitor.start(MosaicListener.Phase.COLOUR_GRID, colourGrid.size());
+        fillColourGrid(targetImage);
+        scanning.finish(colourGrid.size());
 
         this.tileGrid = new Grid<>(columnCount, rowCount);
-        fillImageGridCenterBiased(minRepetitionDistance);
+        if (tiles.isEmpty()) throw new InsufficientTileException();
+        BuildMonitor.Span placing = monitor.start(MosaicListener.Phase.PLACEMENT, colourGrid.size());
+        TileMatcher matcher = createMatcher(settings.matching(), targetImage);
+        int rejectedCandidates = switch (settings.placement()) {
+            case CENTRE_BIASED -> fillImageGridCenterBiased(matcher, settings.minRepetitionDistance(), placing);
+            case GLOBAL_ASSIGNMENT -> fillImageGridGlobally(
+                    matcher,
+                    settings.minRepetitionDistance(),
+                    settings.placementTimeBudget(),
+                    placing
+            );
+            case PARALLEL_REGIONS -> fillImageGridByRegions(
+                    matcher,
+                    settings.minRepetitionDistance(),
+                    settings.placementSeed(),
+                    placing
+            );
+        };
+        placing.finish(colourGrid.size());
+        monitor.candidatesRejected(rejectedCandidates);
     }
 
-    private int[] calculateRowsAndCols(int tileCount, Tile.AspectRatio aspectRatio) {
+    /**
+     * The number of rows and columns a mosaic of the target image is split into,
+     * and the size of a single tile in the exported image.
+     */
+    record Layout(int columnCount, int rowCount, int tileWidth, int tileHeight) {}
+
+    static Layout layoutOf(BufferedImage image, int tileCount, Tile.AspectRatio aspectRatio) {
         assert image != null;
+        return layoutOf(image.getWidth(), image.getHeight(), tileCount, aspectRatio);
+    }
+
+    static Layout layoutOf(int imageWidth, int imageHeight, int tileCount, Tile.AspectRatio aspectRatio) {
+        int[] rowsAndCols = calculateRowsAndCols(imageWidth, imageHeight, tileCount, aspectRatio);
+        int tileHeight = imageHeight / rowsAndCols[1];
+        int tileWidth = (int) Math.round(tileHeight * aspectRatio.ratio());
+        return new Layout(rowsAndCols[0], rowsAndCols[1], tileWidth, tileHeight);
+    }
 
-        double imageRatio = (double) image.getWidth() / image.getHeight();
+    private static int[] calculateRowsAndCols(int imageWidth, int imageHeight,
+                                              int tileCount, Tile.AspectRatio aspectRatio) {
+        double imageRatio = (double) imageWidth / imageHeight;
         double tileRatio = aspectRatio.ratio();
         int side1 = (int) Math.round(Math.sqrt(tileRatio * tileCount / imageRatio));
         int side2 = (int) Math.round(Math.sqrt(imageRatio * tileCount / tileRatio));
-        System.out.println("Actual tile count = " + (side1 * side2));
         // TODO: the algorithm works almost correctly with this line commented out.
         //  An issue is with laying out portrait tiles: in this orientation the
         //  tiles are always more elongated then they should be.
@@ -92,32 +201,57 @@ public class Mosaic {
         } else*/ return new int[]{side2, side1};
     }
 
-    private void fillColourGrid() {
-        final int scanWidth  = image.getWidth() / columnCount;
-        final int scanHeight = image.getHeight() / rowCount;
+    private void fillColourGrid(SummedAreaTable image) {
+        final int scanWidth  = image.width() / columnCount;
+        final int scanHeight = image.height() / rowCount;
         for (int i = 0; i < rowCount; i++) {
             for (int j = 0; j < columnCount; j++) {
-                colourGrid.add(j, i, ImageUtils.calculateAverageColourSquared(
-                        image.getSubimage(j * scanWidth, i * scanHeight, scanWidth, scanHeight)
+                colourGrid.set(j, i, image.averageColourOfRegion(
+                        j * scanWidth, (j + 1) * scanWidth,
+                        i * scanHeight, (i + 1) * scanHeight
                 ));
             }
         }
     }
 
+    private TileMatcher createMatcher(Matching matching, SummedAreaTable image) {
+        return switch (matching) {
+            case AVERAGE_COLOUR -> new ColourMatcher(colourGrid, tiles);
+            case REGION_DESCRIPTOR -> new DescriptorMatcher(colourGrid, calculateCellDescriptors(image), tiles);
+            case QUANTISED_COLOUR -> new QuantisedColourMatcher(colourGrid, tiles);
+        };
+    }
+
+    private float[] calculateCellDescriptors(SummedAreaTable image) {
+        final int scanWidth  = image.width() / columnCount;
+        final int scanHeight = image.height() / rowCount;
+        float[] descriptors = new float[columnCount * rowCount * RegionDescriptor.LENGTH];
+        for (int i = 0; i < rowCount; i++) {
+            for (int j = 0; j < columnCount; j++) {
+                RegionDescriptor.ofRegion(
+                        image,
+                        j * scanWidth, (j + 1) * scanWidth,
+                        i * scanHeight, (i + 1) * scanHeight,
+                        descriptors, colourGrid.indexOf(j, i) * RegionDescriptor.LENGTH
+                );
+            }
+        }
+        return descriptors;
+    }
+
     @Deprecated
     @SuppressWarnings("unused")
     private void fillImageGridSimple() {
-        Set<Tile> availableTiles = new HashSet<>(tiles);
+        TileColourIndex availableTiles = new TileColourIndex(tiles.tiles());
         for (int i = 0; i < rowCount; i++) {
             for (int j = 0; j < columnCount; j++) {
-                final Color targetColour = colourGrid.get(j, i).unwrap();
-                List<Tile> bestMatching3Tiles = availableTiles.stream()
-                        .sorted(Comparator.comparingInt(tile -> tile.colourDistance(targetColour)))
-                        .limit(3)
-                        .collect(Collectors.toList());
-                if (bestMatching3Tiles
-                            .get(bestMatching3Tiles.size() - 1)
-                            .colourDistance(targetColour) <= 50) {
+                TileColourIndex.Cursor candidates = availableTiles.nearestFirst(colourGrid.get(j, i));
+                List<Tile> bestMatching3Tiles = new ArrayList<>(3);
+                while (candidates.hasNext() && bestMatching3Tiles.size() < 3) {
+                    bestMatching3Tiles.add(candidates.next());
+                }
+                if (bestMatching3Tiles.isEmpty()) throw new InsufficientTileException();
+                if (candidates.lastDistance() <= 50 * 50) {
                     Collections.shuffle(bestMatching3Tiles);
                 }
                 tileGrid.add(j, i, bestMatching3Tiles.get(0));
@@ -126,112 +260,221 @@ public class Mosaic {
         }
     }
 
-    private void fillImageGridCenterBiased(int minimumRepetitionDistance) {
-        Set<Tile> availableTiles = new HashSet<>(tiles);
+    // returns the number of candidates rejected for being repeated too close
+    private int fillImageGridCenterBiased(TileMatcher matcher,
+                                          int minimumRepetitionDistance,
+                                          BuildMonitor.Span progress) {
         final int centreX = columnCount / 2;
         final int centreY = rowCount / 2;
 
-        Set<Grid.Coordinate<Color>> visited = new TreeSet<>();
-        Queue<Grid.Coordinate<Color>> queue = new ArrayDeque<>();
-
-        Grid.Coordinate<Color> root = colourGrid.get(centreX, centreY);
-        visited.add(root);
-        queue.add(root);
-
-        while (!queue.isEmpty()) {
-            Grid.Coordinate<Color> colourCoord = queue.poll();
-            Color targetColour = colourCoord.unwrap();
-
-            Tile bestMatchingTile;
-            if (minimumRepetitionDistance == 0) {
-                bestMatchingTile = availableTiles.stream()
-                        .min(Comparator.comparingInt(tile -> tile.colourDistance(targetColour)))
-                        .orElseThrow(InsufficientTileException::new);
-            } else {
-                Stack<Tile> tileStack = availableTiles.stream()
-                        .sorted(Comparator.comparingInt((Tile tile) -> tile.colourDistance(targetColour)).reversed())
-                        .collect(Collectors.toCollection(Stack::new));
-                do {
-                    bestMatchingTile = tileStack.pop();
-                } while (
-                        !tileStack.empty() &&
-                        distanceToSameImageOnGrid(bestMatchingTile, colourCoord.x(), colourCoord.y()) < minimumRepetitionDistance
-                );
+        // every cell is enqueued exactly once, so a flat array suffices as the queue
+        boolean[] visited = new boolean[colourGrid.size()];
+        int[] queue = new int[colourGrid.size()];
+        int[] neighbours = new int[8];
+        int head = 0, tail = 0;
+
+        TilePlacements placements = new TilePlacements();
+        int rejectedCandidates = 0;
+
+        int root = colourGrid.indexOf(centreX, centreY);
+        visited[root] = true;
+        queue[tail++] = root;
+
+        while (head < tail) {
+            int cell = queue[head++];
+            int x = colourGrid.xOf(cell);
+            int y = colourGrid.yOf(cell);
+
+            TileMatcher.Candidates candidates = matcher.candidates(x, y);
+            // candidates are pulled in order of distance; if every tile is too
+            // close to a copy of itself, the farthest one is used
+            Tile bestMatchingTile = candidates.next();
+            while (
+                    candidates.hasNext() &&
+                    placements.isWithin(bestMatchingTile, x, y, minimumRepetitionDistance)
+            ) {
+                bestMatchingTile = candidates.next();
+                rejectedCandidates++;
             }
 
-            tileGrid.add(colourCoord.x(), colourCoord.y(), bestMatchingTile);
-            for (Grid.Coordinate<Color> neighbour : colourGrid.neighboursOf(colourCoord)) {
-                if (!visited.contains(neighbour)) {
-                    visited.add(neighbour);
-                    queue.add(neighbour);
+            tileGrid.add(x, y, bestMatchingTile);
+            placements.add(bestMatchingTile, x, y);
+            int neighbourCount = colourGrid.neighbourIndices(x, y, neighbours);
+            for (int n = 0; n < neighbourCount; n++) {
+                if (!visited[neighbours[n]]) {
+                    visited[neighbours[n]] = true;
+                    queue[tail++] = neighbours[n];
                 }
             }
+            if (head % columnCount == 0) progress.completed(columnCount);
         }
+        return rejectedCandidates;
     }
 
-    private int distanceToSameImageOnGrid(Tile tile, int placementX, int placementY) {
-        SortedSet<Grid.Coordinate<Tile>> neighbours = tileGrid.neighboursOf(placementX, placementY);
+    private int fillImageGridGlobally(TileMatcher matcher,
+                                      int minimumRepetitionDistance,
+                                      Duration timeBudget,
+                                      BuildMonitor.Span progress) {
+        AssignmentPlacement placement =
+                new AssignmentPlacement(matcher, columnCount, rowCount, tiles.tiles(), minimumRepetitionDistance);
+        fillTileGrid(placement.place(timeBudget));
+        progress.completed(colourGrid.size());
+        return placement.rejectedCandidates();
+    }
 
-        Set<Grid.Coordinate<Tile>> visited = new TreeSet<>(neighbours);
-        Queue<Grid.Coordinate<Tile>> queue = new ArrayDeque<>(neighbours);
+    private int fillImageGridByRegions(TileMatcher matcher,
+                                       int minimumRepetitionDistance,
+                                       long seed,
+                                       BuildMonitor.Span progress) {
+        RegionPlacement placement =
+                new RegionPlacement(matcher, columnCount, rowCount, minimumRepetitionDistance, seed);
+        fillTileGrid(placement.place(progress::completed));
+        return placement.rejectedCandidates();
+    }
 
-        while (!queue.isEmpty()) {
-            Grid.Coordinate<Tile> c = queue.poll();
-            if (c.unwrap().equals(tile)) {
-                int dX = placementX - c.x();
-                int dY = placementY - c.y();
-                return (int) Math.round(Math.sqrt(dX*dX + dY*dY));
-            }
-            for (var neighbour : tileGrid.neighboursOf(c)) {
-                if (!visited.contains(neighbour)) {
-                    visited.add(neighbour);
-                    queue.add(neighbour);
+    // the tiles are given in row-major order
+    private void fillTileGrid(Tile[] placed) {
+        for (int cell = 0; cell < placed.length; cell++) {
+            tileGrid.add(colourGrid.xOf(cell), colourGrid.yOf(cell), placed[cell]);
+        }
+    }
+
+    /**
+     * Renders the mosaic on the common fork-join pool.
+     */
+    public BufferedImage export() {
+        return export(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Renders the mosaic, drawing bands of tile rows in parallel on the given
+     * pool. Every distinct tile is resized only once, regardless of how many
+     * times it is placed, unless it is copied from the tile atlas. Does not
+     * require a display.
+     */
+    public BufferedImage export(ForkJoinPool pool) {
+        BuildMonitor.Span exporting = monitor.start(MosaicListener.Phase.EXPORT, rowCount);
+        BufferedImage result = new MosaicRenderer(tileGrid, tileWidth, tileHeight, atlas)
+                .render(pool, exporting::completed);
+        exporting.finish(rowCount);
+        return result;
+    }
+
+    /**
+     * Draws every placed tile as a block of its average colour, no larger than
+     * in the exported mosaic, and scaled down so the whole image is at most
+     * {@value #PREVIEW_WIDTH} pixels wide.
+     */
+    BufferedImage preview() {
+        return preview(Map.of());
+    }
+
+    /**
+     * Draws the preview like {@link #preview()} does, but every tile with a
+     * thumbnail is drawn from that instead, cropped to the tiles' aspect
+     * ratio.
+     */
+    BufferedImage preview(Map<Tile, BufferedImage> thumbnails) {
+        double scale = Math.min(1d, (double) PREVIEW_WIDTH / ((long) tileWidth * columnCount));
+        int blockWidth = Math.max(1, (int) (tileWidth * scale));
+        int blockHeight = Math.max(1, (int) (tileHeight * scale));
+        int width = blockWidth * columnCount;
+        BufferedImage preview = new BufferedImage(width, blockHeight * rowCount, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) preview.getRaster().getDataBuffer()).getData();
+        Map<Tile, int[]> blocks = new HashMap<>();
+        for (int row = 0; row < rowCount; row++) {
+            for (int column = 0; column < columnCount; column++) {
+                if (!tileGrid.contains(column, row)) continue;
+                int[] block = blocks.computeIfAbsent(
+                        tileGrid.get(column, row).unwrap(),
+                        tile -> previewBlockOf(tile, thumbnails.get(tile), blockWidth, blockHeight)
+                );
+                int offset = row * blockHeight * width + column * blockWidth;
+                for (int line = 0; line < blockHeight; line++) {
+                    System.arraycopy(block, line * blockWidth, pixels, offset + line * width, blockWidth);
                 }
             }
         }
-        return Integer.MAX_VALUE;
-    }
-
-    // naive implementation
-    public BufferedImage export() throws InterruptedException, InvocationTargetException {
-        final int resultWidth = tileWidth * columnCount;
-        final int resultHeight = tileHeight * rowCount;
-        BufferedImage result = new BufferedImage(resultWidth, resultHeight, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = result.createGraphics();
-        g.setPaint(Color.WHITE);
-        g.fillRect(0, 0, resultWidth, resultHeight);
-        g.dispose();
-        System.out.println("Result image supposedly prepared");
-        for (int i = 0; i < rowCount; i++) {
-            for (int j = 0; j < columnCount; j++) {
-                BufferedImage tileImage = tileGrid.get(j, i).unwrap().getImage();
-                BufferedImage resizedTileImage = new BufferedImage(tileWidth, tileHeight, tileImage.getType());
-                SwingUtilities.invokeAndWait(() -> {
-                    Graphics2D tileG = resizedTileImage.createGraphics();
-                    tileG.setRenderingHint(
-                            RenderingHints.KEY_INTERPOLATION,
-                            RenderingHints.VALUE_INTERPOLATION_BILINEAR
-                    );
-                    tileG.drawImage(
-                            tileImage,
-                            0, 0, tileWidth, tileHeight,
-                            0, 0, tileImage.getWidth(), tileImage.getHeight(),
-                            null
-                    );
-                    tileG.dispose();
-                });
-                int finalJ = j;
-                int finalI = i;
-                SwingUtilities.invokeAndWait(() -> {
-                    Graphics2D resultGraphics = result.createGraphics();
-                    resultGraphics.drawImage(
-                            resizedTileImage, null,
-                            finalJ * tileWidth, finalI * tileHeight
-                    );
-                    resultGraphics.dispose();
-                });
-            }
+        return preview;
+    }
+
+    private int[] previewBlockOf(Tile tile, BufferedImage thumbnail, int width, int height) {
+        if (thumbnail == null) {
+            int[] block = new int[width * height];
+            Arrays.fill(block, tile.getRgb());
+            return block;
         }
+        BufferedImage resized = ImageUtils.resize(Tile.cropToAspectRatio(thumbnail, tiles.aspectRatio()), width, height);
+        return ((DataBufferInt) resized.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Renders the mosaic like {@link #export(ForkJoinPool)} does, but in bands
+     * of as many rows of tiles as the pool has threads, telling the listener
+     * about every finished band from the calling thread.
+     */
+    BufferedImage exportProgressively(ForkJoinPool pool, PreviewListener listener) {
+        BuildMonitor.Span exporting = monitor.start(MosaicListener.Phase.EXPORT, rowCount);
+        MosaicRenderer renderer = new MosaicRenderer(tileGrid, tileWidth, tileHeight, atlas);
+        BufferedImage result = new BufferedImage(renderer.width(), renderer.height(), BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        int band = Math.max(1, pool.getParallelism());
+        for (int row = 0; row < rowCount; row += band) {
+            int lastRow = Math.min(rowCount, row + band);
+            renderer.render(pool, pixels, row, lastRow);
+            exporting.completed(lastRow - row);
+            listener.regionRendered(
+                    result,
+                    new Rectangle(0, row * tileHeight, renderer.width(), (lastRow - row) * tileHeight)
+            );
+        }
+        exporting.finish(rowCount);
         return result;
     }
-}
\ No newline at end of file
+
+    /**
+     * Writes the mosaic as a Deep Zoom image, rendering its web tiles on the
+     * common fork-join pool.
+     *
+     * @see #exportDeepZoom(Path, String, ForkJoinPool)
+     */
+    public void exportDeepZoom(Path directory, String name) throws IOException {
+        exportDeepZoom(directory, name, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Writes the mosaic as a Deep Zoom image: the descriptor
+     * {@code <name>.dzi} and the PNG web tiles of every zoom level, in
+     * {@code <name>_files}, both in the given directory. Web tiles are rendered
+     * in parallel on the given pool, from scaled down copies of the placed
+     * tiles, so the full image is never held in memory.
+     */
+    public void exportDeepZoom(Path directory, String name, ForkJoinPool pool) throws IOException {
+        DeepZoomExporter exporter = new DeepZoomExporter(
+                new MosaicRenderer(tileGrid, tileWidth, tileHeight, atlas), tileGrid, tileWidth, tileHeight
+        );
+        BuildMonitor.Span exporting = monitor.start(MosaicListener.Phase.EXPORT, exporter.webTileCount());
+        exporter.export(directory, name, pool, exporting::completed);
+        exporting.finish(exporter.webTileCount());
+    }
+
+    /**
+     * Renders the mosaic straight into a PNG file, one row of tiles at a time.
+     * Only a single strip of the image is held in memory at once, besides the
+     * resized tiles placed both above and below it, so the mosaic may be far
+     * larger than what would fit into a {@code BufferedImage}.
+     */
+    public void exportTo(Path pngFile) throws IOException {
+        BuildMonitor.Span exporting = monitor.start(MosaicListener.Phase.EXPORT, rowCount);
+        MosaicRenderer renderer = new MosaicRenderer(tileGrid, tileWidth, tileHeight, atlas);
+        int[] strip = new int[Math.multiplyExact(renderer.width(), tileHeight)];
+        try (PngStreamWriter writer = PngStreamWriter.create(pngFile, renderer.width(), renderer.height())) {
+            for (int row = 0; row < rowCount; row++) {
+                renderer.renderRows(strip, 0, row, row + 1);
+                writer.writeRows(strip, 0, tileHeight);
+                exporting.completed(1);
+            }
+        }
+        exporting.finish(rowCount);
+    }
+}
@@ -3,26 +3,96 @@ package hu.aestallon.psifidoto.mosaic;
 import hu.aestallon.psifidoto.util.io.Directory;
 import hu.aestallon.psifidoto.util.io.ImageFile;
 
-import javax.imageio.ImageIO;
+import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
 
 public class MosaicBuilder {
 
+    // subsampled tiles are decoded at (at least) this many times the output
+    // tile size, leaving the final, filtered resize some detail to work with
+    private static final int SUBSAMPLING_HEADROOM = 2;
+    // near duplicates must also be this close in average colour: flat or
+    // simple images of different colours share the same structure
+    private static final int MAX_DUPLICATE_COLOUR_DISTANCE_SQUARED = 24 * 24;
+    // the target is scanned subsampled, but to no fewer than this many pixels
+    // across a cell, leaving each sub-region of its descriptor a few to average
+    private static final int MIN_SCANNED_CELL_SIZE = 4 * RegionDescriptor.GRID;
+
     private ImageFile targetImage;
+    // the size of the last loaded target, and the table it was last scanned
+    // into, kept so that rebuilding the same, unchanged target with different
+    // settings does not decode and scan it again; the table is of the target
+    // subsampled to the resolution the grid needs, and the decoded image
+    // itself is dropped once scanned
+    private ImageFile loadedTargetImage;
+    private FileTime loadedTargetModified;
+    private long loadedTargetSize;
+    private Dimension loadedTargetDimensions;
+    private SummedAreaTable loadedImageTable;
+    private int loadedImageSubsampling;
 
     private Set<ImageFile> imageFiles;
+    private TileLibrary tileLibrary;
     private Tile.AspectRatio tileAspectRatio;
     private int tileCountHint;
     private int minRepetitionDistance;
+    private Mosaic.Matching matching;
+    private Mosaic.Placement placement;
+    private Duration placementTimeBudget;
+    private long placementSeed;
+    private MosaicListener listener;
+    private boolean useTileCache;
+    private boolean subsampledDecoding;
+    private int loadingConcurrency;
+    private long loadingMemoryBudget;
+    private long tilePixelCacheSize;
+    private int nearDuplicateDistance;
+    private Path tileAtlasFile;
+    private int tileAtlasWidth;
+    private int tileAtlasHeight;
 
     MosaicBuilder() {
         imageFiles = new TreeSet<>();
+        matching = Mosaic.Matching.AVERAGE_COLOUR;
+        placement = Mosaic.Placement.CENTRE_BIASED;
+        placementTimeBudget = Duration.ofSeconds(2);
+        listener = MosaicListener.NONE;
+        loadingConcurrency = Runtime.getRuntime().availableProcessors();
+        loadingMemoryBudget = Runtime.getRuntime().maxMemory() / 4;
+        tilePixelCacheSize = Runtime.getRuntime().maxMemory() / 8;
+        nearDuplicateDistance = -1;
+    }
+
+    // copies the settings of another builder, but none of its tiles or images
+    private MosaicBuilder(MosaicBuilder other) {
+        this();
+        tileAspectRatio = other.tileAspectRatio;
+        tileCountHint = other.tileCountHint;
+        listener = other.listener;
+        useTileCache = other.useTileCache;
+        subsampledDecoding = other.subsampledDecoding;
+        loadingConcurrency = other.loadingConcurrency;
+        loadingMemoryBudget = other.loadingMemoryBudget;
+        tilePixelCacheSize = other.tilePixelCacheSize;
+        nearDuplicateDistance = other.nearDuplicateDistance;
     }
 
     //--------------------------------------------------------------------------
@@ -33,6 +103,15 @@ public class MosaicBuilder {
         return this;
     }
 
+    /**
+     * Adds the image files of the directory and, if {@code recursive}, of all
+     * of its subdirectories.
+     */
+    public MosaicBuilder withTilesFrom(Directory directory, boolean recursive) {
+        this.imageFiles.addAll(recursive ? directory.imageFilesRecursively() : directory.imageFiles());
+        return this;
+    }
+
     public MosaicBuilder withTileFrom(ImageFile imageFile) {
         this.imageFiles.add(imageFile);
         return this;
@@ -43,11 +122,108 @@ public class MosaicBuilder {
         return this;
     }
 
+    /**
+     * Builds mosaics from an already loaded library, instead of the tiles added
+     * to this builder. The tile aspect ratio is that of the library. Pass
+     * {@code null} to go back to loading tiles.
+     */
+    public MosaicBuilder withTileLibrary(TileLibrary tileLibrary) {
+        this.tileLibrary = tileLibrary;
+        return this;
+    }
+
     public MosaicBuilder targetImage(ImageFile imageFile) {
         this.targetImage = imageFile;
         return this;
     }
 
+    /**
+     * Keeps a persistent index of tile colours and thumbnails in every tile
+     * directory, so later builds with the same tiles only decode the images
+     * they actually place (and only when exporting).
+     */
+    public MosaicBuilder withTileCache(boolean useTileCache) {
+        this.useTileCache = useTileCache;
+        return this;
+    }
+
+    /**
+     * Decodes only the aspect ratio crop of every tile image, skipping as many
+     * source pixels as the size of a tile in the exported mosaic allows. This
+     * makes loading large photos much cheaper in both time and memory.
+     */
+    public MosaicBuilder withSubsampledDecoding(boolean subsampledDecoding) {
+        this.subsampledDecoding = subsampledDecoding;
+        return this;
+    }
+
+    /**
+     * Sets how many tile images may be decoded at the same time.
+     */
+    public MosaicBuilder withLoadingConcurrency(int loadingConcurrency) {
+        this.loadingConcurrency = loadingConcurrency;
+        return this;
+    }
+
+    /**
+     * Sets how many bytes the decoded (not yet cropped) tile images may occupy
+     * at the same time. Loading waits for memory to be freed up once this
+     * budget is exhausted.
+     */
+    public MosaicBuilder withLoadingMemoryBudget(long bytes) {
+        this.loadingMemoryBudget = bytes;
+        return this;
+    }
+
+    /**
+     * Sets how many bytes the cropped tile images may occupy once decoded for
+     * export. Tiles keep only their colours and descriptors after loading;
+     * their images are decoded again from their files when first exported,
+     * and evicted least recently used first once this size is exceeded.
+     */
+    public MosaicBuilder withTilePixelCacheSize(long bytes) {
+        this.tilePixelCacheSize = bytes;
+        return this;
+    }
+
+    /**
+     * Drops near-duplicate tiles (such as the shots of a burst) while loading:
+     * a tile whose {@linkplain PerceptualHash perceptual hash} differs in at
+     * most {@code maxDistance} of its 64 bits from that of a tile loaded
+     * earlier, and whose average colour is also close to that tile's, is left
+     * out. Around 5 catches re-encoded or slightly edited copies, around 10
+     * most bursts. Pass a negative value to keep every tile, which is the
+     * default.
+     */
+    public MosaicBuilder withNearDuplicateDistance(int maxDistance) {
+        this.nearDuplicateDistance = maxDistance;
+        return this;
+    }
+
+    /**
+     * Keeps the tiles, resized to {@code tileWidth} x {@code tileHeight}, in a
+     * memory-mapped atlas file, so exporting mosaics of that tile size copies
+     * their pixels instead of decoding and resizing them. Builds of any other
+     * tile size neither use nor change the atlas. The atlas is updated on
+     * every build: only tiles whose files are new or have changed are written,
+     * possibly into the slots of changed or deleted files. A mosaic built
+     * earlier notices such a later update when exported, and then resizes its
+     * tiles instead of copying them. Builds running at the same time, or a
+     * build running while an earlier mosaic is exported, must not share an
+     * atlas file. Pass {@code null} to export without one.
+     *
+     * @throws IllegalArgumentException if the tile size is not positive
+     */
+    public MosaicBuilder withTileAtlas(Path file, int tileWidth, int tileHeight) {
+        if (file != null && (tileWidth < 1 || tileHeight < 1)) {
+            throw new IllegalArgumentException("Illegal atlas tile size!");
+        }
+        this.tileAtlasFile = file;
+        this.tileAtlasWidth = tileWidth;
+        this.tileAtlasHeight = tileHeight;
+        return this;
+    }
+
     //--------------------------------------------------------------------------
     // Mosaic layout related building methods
 
@@ -66,37 +242,449 @@ public class MosaicBuilder {
         return this;
     }
 
+    public MosaicBuilder withMatching(Mosaic.Matching matching) {
+        this.matching = matching;
+        return this;
+    }
+
+    public MosaicBuilder withPlacement(Mosaic.Placement placement) {
+        this.placement = placement;
+        return this;
+    }
+
+    /**
+     * Sets how long {@link Mosaic.Placement#GLOBAL_ASSIGNMENT} may refine its
+     * solution. Once the budget runs out, the best assignment found so far is
+     * used.
+     */
+    public MosaicBuilder withPlacementTimeBudget(Duration placementTimeBudget) {
+        this.placementTimeBudget = placementTimeBudget;
+        return this;
+    }
+
+    /**
+     * Sets the seed of {@link Mosaic.Placement#PARALLEL_REGIONS}. Building the
+     * same mosaic with the same seed always places the same tiles.
+     */
+    public MosaicBuilder withPlacementSeed(long placementSeed) {
+        this.placementSeed = placementSeed;
+        return this;
+    }
+
+    /**
+     * Sets the listener notified of the progress of building, and later of
+     * exporting, the mosaic.
+     */
+    public MosaicBuilder withListener(MosaicListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
     //--------------------------------------------------------------------------
     // LIFTOFF
 
     public Mosaic build() {
+        BuildMonitor monitor = new BuildMonitor(listener);
+        Prepared prepared = prepare(monitor, null);
         return new Mosaic(
-                () -> loadImageFile(targetImage),
-                () -> imageFiles.stream()
-                        .map(this::loadImageFile)
-                        .map(image -> new Tile(image, tileAspectRatio))
-                        .collect(Collectors.toSet()),
-                tileAspectRatio,
-                tileCountHint,
-                minRepetitionDistance
+                loadedImageTable,
+                prepared.layout(),
+                prepared.tiles(),
+                settings(matching, placement),
+                monitor,
+                updateAtlas(prepared, monitor)
+        );
+    }
+
+    /**
+     * Builds the mosaic in stages, each giving a better image than the last to
+     * the preview listener: first a sketch of tiles placed greedily by average
+     * colour, then the same for tiles placed as configured, and finally the
+     * exported mosaic itself, region by region. The returned mosaic is the one
+     * exported in the last stage.
+     *
+     * <p>With a {@linkplain #withTileCache tile cache}, the sketch and the
+     * placed tiles are drawn from the thumbnails in the cache; otherwise, as
+     * blocks of the tiles' average colour. The sketch is matched through the
+     * {@linkplain Mosaic.Matching#QUANTISED_COLOUR quantised} lookup table if
+     * the library already has one, and exactly otherwise. Even the sketch waits
+     * for every tile to be loaded: only with an already loaded
+     * {@linkplain #withTileLibrary library} or an up-to-date tile cache is it
+     * ready before any tile image is decoded.
+     */
+    public Mosaic buildProgressively(PreviewListener previewListener) {
+        BuildMonitor monitor = new BuildMonitor(listener);
+        Map<Tile, BufferedImage> thumbnails = new ConcurrentHashMap<>();
+        Prepared prepared = prepare(monitor, thumbnails);
+
+        // the lookup table first has to search the library for the short list
+        // of every colour looked up, which costs more than exact matching does
+        // for a single sketch
+        Mosaic sketch = new Mosaic(
+                loadedImageTable,
+                prepared.layout(),
+                prepared.tiles(),
+                settings(
+                        prepared.tiles().hasColourLookupTable()
+                                ? Mosaic.Matching.QUANTISED_COLOUR
+                                : Mosaic.Matching.AVERAGE_COLOUR,
+                        Mosaic.Placement.CENTRE_BIASED
+                ),
+                BuildMonitor.NONE
+        );
+        previewListener.imageReady(PreviewListener.Stage.SKETCH, sketch.preview(thumbnails));
+
+        Mosaic mosaic = new Mosaic(
+                loadedImageTable,
+                prepared.layout(),
+                prepared.tiles(),
+                settings(matching, placement),
+                monitor,
+                updateAtlas(prepared, monitor)
+        );
+        previewListener.imageReady(PreviewListener.Stage.PLACED, mosaic.preview(thumbnails));
+        previewListener.imageReady(
+                PreviewListener.Stage.RENDERED,
+                mosaic.exportProgressively(ForkJoinPool.commonPool(), previewListener)
+        );
+        return mosaic;
+    }
+
+    /**
+     * Loads the tiles added to this builder into a library, which can then be
+     * shared by any number of builds. Loading is configured just like for
+     * {@link #build()}; subsampled decoding, however, only applies if a target
+     * image is set: tiles are then decoded for the mosaic of that target and
+     * the current tile count.
+     */
+    public TileLibrary buildTileLibrary() {
+        BuildMonitor monitor = new BuildMonitor(listener);
+        BuildMonitor.Span decoding = monitor.start(MosaicListener.Phase.DECODE, imageFiles.size());
+        Mosaic.Layout layout = null;
+        if (targetImage != null) {
+            loadTargetImage();
+            layout = layoutOfTarget(tileAspectRatio);
+        }
+        TilePixelCache pixels = new TilePixelCache(tilePixelCacheSize);
+        TileLibrary library = TileLibrary.of(
+                dropNearDuplicates(
+                        List.of(),
+                        loadTiles(imageFiles, layout, pixels, false, monitor, decoding, null),
+                        pixels,
+                        monitor
+                ),
+                tileAspectRatio
         );
+        decoding.finish(library.size());
+        monitor.recordCropping();
+        return library;
+    }
+
+    /**
+     * Loads the image files of a directory tree into a library, and returns a
+     * sync which keeps that library up to date with the tree from then on,
+     * loading only new or changed files. Loading is configured just like for
+     * {@link #buildTileLibrary()}, as of the time of this call; tiles added to
+     * this builder are ignored. Files that fail to load are left out, and are
+     * only tried again once they change. New files which are near duplicates
+     * of tiles already in the library are left out as well, and are only
+     * reconsidered once they change or tiles are removed from the library.
+     *
+     * @see TileLibrarySync#watch()
+     */
+    public TileLibrarySync syncTileLibrary(Directory root) {
+        // failures are skipped while syncing, so a missing ratio would go unnoticed
+        if (tileAspectRatio == null) throw new IllegalStateException("Tile aspect ratio is not set!");
+        MosaicBuilder settings = new MosaicBuilder(this);
+        Mosaic.Layout layout = null;
+        if (targetImage != null) {
+            loadTargetImage();
+            layout = layoutOfTarget(tileAspectRatio);
+        }
+        Mosaic.Layout decodingLayout = layout;
+        TilePixelCache pixels = new TilePixelCache(tilePixelCacheSize);
+        return TileLibrarySync.start(root, tileAspectRatio, new TileLibrarySync.Loader() {
+            @Override
+            public List<Tile> load(Collection<ImageFile> files) {
+                BuildMonitor monitor = new BuildMonitor(settings.listener);
+                BuildMonitor.Span decoding = monitor.start(MosaicListener.Phase.DECODE, files.size());
+                List<Tile> tiles = settings.loadTiles(files, decodingLayout, pixels, true, monitor, decoding, null);
+                decoding.finish(tiles.size());
+                monitor.recordCropping();
+                return tiles;
+            }
+
+            @Override
+            public List<Tile> dropNearDuplicates(Collection<Tile> keptTiles, List<Tile> tiles) {
+                return settings.dropNearDuplicates(keptTiles, tiles, pixels, new BuildMonitor(settings.listener));
+            }
+
+            @Override
+            public void evict(Collection<Tile> tiles) {
+                tiles.forEach(pixels::remove);
+            }
+        });
     }
 
     //--------------------------------------------------------------------------
     // util
 
-    private BufferedImage loadImageFile(ImageFile imageFile) {
-        try (InputStream in = Files.newInputStream(imageFile.toPath())) {
-            return ImageIO.read(in);
+    private record Prepared(Mosaic.Layout layout, TileLibrary tiles) {}
+
+    // loads the target image and the tiles, unless a library is given; the
+    // thumbnails of the tiles in the tile cache are collected if asked for
+    private Prepared prepare(BuildMonitor monitor, Map<Tile, BufferedImage> thumbnails) {
+        BuildMonitor.Span decoding = monitor.start(
+                MosaicListener.Phase.DECODE,
+                tileLibrary == null ? imageFiles.size() : 0
+        );
+        loadTargetImage();
+        Mosaic.Layout layout = layoutOfTarget(tileLibrary == null ? tileAspectRatio : tileLibrary.aspectRatio());
+        scanTargetImage(layout);
+        TileLibrary tiles = tileLibrary;
+        if (tiles == null) {
+            TilePixelCache pixels = new TilePixelCache(tilePixelCacheSize);
+            tiles = TileLibrary.of(
+                    dropNearDuplicates(
+                            List.of(),
+                            loadTiles(imageFiles, layout, pixels, false, monitor, decoding, thumbnails),
+                            pixels,
+                            monitor
+                    ),
+                    tileAspectRatio
+            );
+            decoding.finish(tiles.size());
+            monitor.recordCropping();
+        } else {
+            decoding.finish(0);
+            if (thumbnails != null && useTileCache) collectThumbnails(tiles.tiles(), thumbnails);
+        }
+        return new Prepared(layout, tiles);
+    }
+
+    // returns null if no atlas is used, or it is of another tile size
+    private TileAtlas updateAtlas(Prepared prepared, BuildMonitor monitor) {
+        Mosaic.Layout layout = prepared.layout();
+        if (tileAtlasFile == null
+            || layout.tileWidth() != tileAtlasWidth
+            || layout.tileHeight() != tileAtlasHeight) {
+            return null;
+        }
+        BuildMonitor.Span updating = monitor.start(MosaicListener.Phase.ATLAS, 0);
+        TileAtlas atlas = TileAtlas.open(tileAtlasFile, tileAtlasWidth, tileAtlasHeight, prepared.tiles().aspectRatio());
+        updating.finish(atlas.update(prepared.tiles().tiles()));
+        return atlas;
+    }
+
+    private Mosaic.Settings settings(Mosaic.Matching matching, Mosaic.Placement placement) {
+        return new Mosaic.Settings(matching, placement, minRepetitionDistance, placementTimeBudget, placementSeed);
+    }
+
+    // reads the size of the target if it is another file, or the same file
+    // changed, dropping the table of the previous one
+    private void loadTargetImage() {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(targetImage.toPath(), BasicFileAttributes.class);
         } catch (IOException e) {
-            throw new IllegalStateException();
+            throw new UncheckedIOException("Cannot read target image " + targetImage.toPath(), e);
         }
+        if (targetImage.equals(loadedTargetImage)
+            && attributes.lastModifiedTime().equals(loadedTargetModified)
+            && attributes.size() == loadedTargetSize) {
+            return;
+        }
+        loadedTargetDimensions = TileLoader.sizeOf(targetImage);
+        loadedImageTable = null;
+        loadedTargetImage = targetImage;
+        loadedTargetModified = attributes.lastModifiedTime();
+        loadedTargetSize = attributes.size();
+    }
+
+    private Mosaic.Layout layoutOfTarget(Tile.AspectRatio aspectRatio) {
+        return Mosaic.layoutOf(loadedTargetDimensions.width, loadedTargetDimensions.height, tileCountHint, aspectRatio);
+    }
+
+    // scans the loaded target subsampled as far as the cells of the layout
+    // allow, unless it is already scanned at least as finely
+    private void scanTargetImage(Mosaic.Layout layout) {
+        int cellSize = Math.min(
+                loadedTargetDimensions.width / layout.columnCount(),
+                loadedTargetDimensions.height / layout.rowCount()
+        );
+        int subsampling = Math.max(1, cellSize / MIN_SCANNED_CELL_SIZE);
+        if (loadedImageTable != null && loadedImageSubsampling <= subsampling) return;
+        loadedImageTable = SummedAreaTable.ofSquaredChannels(TileLoader.read(targetImage, subsampling));
+        loadedImageSubsampling = subsampling;
+    }
+
+    // without a layout, tiles are decoded in full; files that fail to load are
+    // either skipped or fail the whole load; the thumbnails of the tile cache
+    // are collected if asked for
+    private List<Tile> loadTiles(Collection<ImageFile> files,
+                                 Mosaic.Layout layout,
+                                 TilePixelCache pixels,
+                                 boolean skipFailures,
+                                 BuildMonitor monitor,
+                                 BuildMonitor.Span decoding,
+                                 Map<Tile, BufferedImage> thumbnails) {
+        TileLoader loader = new TileLoader(loadingConcurrency, loadingMemoryBudget);
+        Map<Path, TileCache> caches = new ConcurrentHashMap<>();
+        List<Tile> tiles = loader.load(
+                files,
+                imageFile -> {
+                    Tile tile;
+                    try {
+                        tile = useTileCache
+                                ? loadTile(
+                                        loader,
+                                        imageFile,
+                                        layout,
+                                        caches.computeIfAbsent(
+                                                imageFile.toPath().toAbsolutePath().getParent(),
+                                                TileCache::open
+                                        ),
+                                        pixels,
+                                        monitor,
+                                        thumbnails)
+                                : loadTile(loader, imageFile, layout, pixels, monitor);
+                    } catch (RuntimeException e) {
+                        if (!skipFailures) throw e;
+                        tile = null;
+                    }
+                    decoding.completed(1);
+                    return tile;
+                }
+        );
+        caches.values().forEach(TileCache::save);
+        if (skipFailures) tiles.removeIf(Objects::isNull);
+        return tiles;
+    }
+
+    // keeps the first of every group of near duplicates among the tiles, in
+    // loading order, dropping those also near duplicates of an already kept
+    // tile; the pixels of dropped tiles are evicted
+    private List<Tile> dropNearDuplicates(Collection<Tile> keptTiles,
+                                          List<Tile> tiles,
+                                          TilePixelCache pixels,
+                                          BuildMonitor monitor) {
+        if (nearDuplicateDistance < 0) return tiles;
+        HashIndex<Tile> kept = new HashIndex<>();
+        for (Tile tile : keptTiles) {
+            kept.add(tile.getHash(), tile);
+        }
+        List<Tile> result = new ArrayList<>(tiles.size());
+        for (Tile tile : tiles) {
+            Tile duplicate = kept.findWithin(
+                    tile.getHash(),
+                    nearDuplicateDistance,
+                    another -> tile.squaredColourDistance(another.getRgb()) <= MAX_DUPLICATE_COLOUR_DISTANCE_SQUARED
+            );
+            if (duplicate != null) {
+                pixels.remove(tile);
+            } else {
+                kept.add(tile.getHash(), tile);
+                result.add(tile);
+            }
+        }
+        monitor.duplicatesDropped(tiles.size() - result.size());
+        return result;
+    }
+
+    private Tile loadTile(TileLoader loader,
+                          ImageFile imageFile,
+                          Mosaic.Layout layout,
+                          TilePixelCache pixels,
+                          BuildMonitor monitor) {
+        long start = System.nanoTime();
+        BufferedImage image = decodeTile(loader, imageFile, layout, true);
+        long decoded = System.nanoTime();
+        Tile tile = Tile.ofSource(
+                imageFile,
+                Tile.cropToAspectRatio(image, tileAspectRatio),
+                decoderOf(imageFile, layout),
+                pixels
+        );
+        monitor.tileLoaded(imageFile, decoded - start, System.nanoTime() - decoded, false);
+        return tile;
     }
 
+    private Tile loadTile(TileLoader loader,
+                          ImageFile imageFile,
+                          Mosaic.Layout layout,
+                          TileCache cache,
+                          TilePixelCache pixels,
+                          BuildMonitor monitor,
+                          Map<Tile, BufferedImage> thumbnails) {
+        long start = System.nanoTime();
+        TileCache.Entry entry = cache.lookup(imageFile);
+        if (entry != null && entry.hasColour(tileAspectRatio)) {
+            Tile tile = new Tile(
+                    imageFile,
+                    decoderOf(imageFile, layout),
+                    pixels,
+                    entry.colour(tileAspectRatio),
+                    entry.descriptor(tileAspectRatio),
+                    entry.hash(tileAspectRatio)
+            );
+            if (thumbnails != null) thumbnails.put(tile, entry.thumbnail());
+            monitor.tileLoaded(imageFile, System.nanoTime() - start, 0L, true);
+            return tile;
+        }
 
+        BufferedImage image = decodeTile(loader, imageFile, layout, true);
+        long decoded = System.nanoTime();
+        BufferedImage cropped = Tile.cropToAspectRatio(image, tileAspectRatio);
+        entry = cache.update(imageFile, cropped);
+        Tile tile = Tile.ofSource(imageFile, cropped, decoderOf(imageFile, layout), pixels);
+        cache.putTile(entry, tileAspectRatio, tile);
+        if (thumbnails != null) thumbnails.put(tile, entry.thumbnail());
+        monitor.tileLoaded(imageFile, decoded - start, System.nanoTime() - decoded, false);
+        return tile;
+    }
 
+    // looks up the thumbnails of library tiles in the tile caches of their
+    // directories; tiles not (or no longer up to date) in a cache are skipped
+    private static void collectThumbnails(Collection<Tile> tiles, Map<Tile, BufferedImage> thumbnails) {
+        Map<Path, TileCache> caches = new HashMap<>();
+        for (Tile tile : tiles) {
+            ImageFile source = tile.getSource();
+            if (source == null) continue;
+            TileCache cache = caches.computeIfAbsent(source.toPath().toAbsolutePath().getParent(), TileCache::open);
+            try {
+                TileCache.Entry entry = cache.lookup(source);
+                if (entry != null) thumbnails.put(tile, entry.thumbnail());
+            } catch (RuntimeException e) {
+                // the file is gone or unreadable: drawn without a thumbnail
+            }
+        }
+    }
 
+    private BufferedImage decodeTile(TileLoader loader, ImageFile imageFile, Mosaic.Layout layout, boolean crop) {
+        return subsampledDecoding && layout != null
+                ? loader.decode(imageFile, tileAspectRatio, minDecodedWidth(layout), minDecodedHeight(layout), crop)
+                : loader.decode(imageFile);
+    }
 
+    /**
+     * Returns how a tile's cropped image is decoded again once evicted from the
+     * pixel cache: only the crop region is read, subsampled just like at load
+     * time.
+     */
+    private Supplier<BufferedImage> decoderOf(ImageFile imageFile, Mosaic.Layout layout) {
+        Tile.AspectRatio aspectRatio = tileAspectRatio;
+        boolean subsampled = subsampledDecoding && layout != null;
+        // with no minimum size to leave, no pixels are skipped
+        int minWidth = subsampled ? minDecodedWidth(layout) : Integer.MAX_VALUE;
+        int minHeight = subsampled ? minDecodedHeight(layout) : Integer.MAX_VALUE;
+        return () -> TileLoader.read(imageFile, aspectRatio, minWidth, minHeight, true, bytes -> {});
+    }
 
+    private static int minDecodedWidth(Mosaic.Layout layout) {
+        return Math.max(1, SUBSAMPLING_HEADROOM * layout.tileWidth());
+    }
 
+    private static int minDecodedHeight(Mosaic.Layout layout) {
+        return Math.max(1, SUBSAMPLING_HEADROOM * layout.tileHeight());
+    }
 }
@@ -0,0 +1,70 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.time.Duration;
+
+/**
+ * Receives progress and timing reports while a mosaic is built and exported.
+ *
+ * <p>All methods do nothing by default. Reports may arrive from any thread,
+ * including several at once, so implementations must be thread-safe.
+ *
+ * @see MosaicBuilder#withListener(MosaicListener)
+ */
+public interface MosaicListener {
+
+    MosaicListener NONE = new MosaicListener() {};
+
+    enum Phase {
+        /** Reading the target image and decoding the tile images. */
+        DECODE,
+        /**
+         * Cropping the tile images to the tile aspect ratio and computing their
+         * colours. This happens right after each tile is decoded, so it is
+         * reported once loading is over, with the time spent cropping summed
+         * across all loading threads.
+         */
+        CROP,
+        /**
+         * Resizing the tiles missing from the tile atlas, if one is used, and
+         * writing them into it.
+         */
+        ATLAS,
+        /** Computing the average colour of every cell of the target image. */
+        COLOUR_GRID,
+        /** Setting up tile matching and assigning a tile to every cell. */
+        PLACEMENT,
+        /** Rendering the placed tiles into the result image. */
+        EXPORT
+    }
+
+    default void phaseStarted(Phase phase) {}
+
+    /**
+     * Reports that {@code completed} out of {@code total} items of the phase
+     * are done: tile images for {@link Phase#DECODE}, cells for
+     * {@link Phase#PLACEMENT} and rows of tiles (or, for Deep Zoom images, web
+     * tiles) for {@link Phase#EXPORT}.
+     */
+    default void progress(Phase phase, int completed, int total) {}
+
+    /**
+     * Reports that a phase has finished after processing {@code count} items:
+     * tiles loaded, tiles cropped, tiles written to the atlas, cells scanned,
+     * cells placed or rows of tiles (or web tiles) rendered.
+     */
+    default void phaseFinished(Phase phase, Duration duration, int count) {}
+
+    /**
+     * Reports how many candidate tiles placement passed over, because they
+     * would have been repeated within the minimum repetition distance.
+     */
+    default void candidatesRejected(int count) {}
+
+    /**
+     * Reports how many tiles were dropped while loading, because they were
+     * near duplicates of tiles kept.
+     *
+     * @see MosaicBuilder#withNearDuplicateDistance(int)
+     */
+    default void duplicatesDropped(int count) {}
+}
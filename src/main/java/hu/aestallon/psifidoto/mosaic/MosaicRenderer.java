@@ -0,0 +1,180 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Draws the tiles placed on a grid into packed {@code 0xRRGGBB} pixel buffers,
+ * without going through AWT's drawing pipeline (or the Swing event thread).
+ *
+ * <p>Tiles found in the {@link TileAtlas}, if there is one, are copied straight
+ * from it. Every other distinct tile is resized to the output tile size, from
+ * its mipmap, only once, the first time it is needed; later placements copy
+ * the cached pixels row by row. The resized pixels are dropped as soon as the
+ * last placement of the tile is drawn, so rendering row by row only holds the
+ * tiles placed both above and below the current row. The renderer is safe to
+ * use from multiple threads, but draws every row only once.
+ */
+final class MosaicRenderer {
+    private final Grid<Tile> tileGrid;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final Map<Tile, int[]> resizedTiles;
+    // the placements not drawn yet, of every tile not copied from the atlas
+    private final Map<Tile, AtomicInteger> placementsLeft;
+    // null if there is none
+    private final TileAtlas atlas;
+
+    MosaicRenderer(Grid<Tile> tileGrid, int tileWidth, int tileHeight) {
+        this(tileGrid, tileWidth, tileHeight, null);
+    }
+
+    MosaicRenderer(Grid<Tile> tileGrid, int tileWidth, int tileHeight, TileAtlas atlas) {
+        this.tileGrid = tileGrid;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.resizedTiles = new ConcurrentHashMap<>();
+        // an atlas updated by a later build may hold other tiles in our slots
+        this.atlas = atlas != null
+                     && atlas.tileWidth() == tileWidth && atlas.tileHeight() == tileHeight
+                     && atlas.isCurrent()
+                ? atlas
+                : null;
+        this.placementsLeft = new HashMap<>();
+        for (int row = 0; row < tileGrid.height(); row++) {
+            for (int column = 0; column < tileGrid.width(); column++) {
+                if (!tileGrid.contains(column, row)) continue;
+                Tile tile = tileGrid.get(column, row).unwrap();
+                if (this.atlas != null && this.atlas.contains(tile)) continue;
+                placementsLeft.computeIfAbsent(tile, t -> new AtomicInteger()).incrementAndGet();
+            }
+        }
+    }
+
+    int width() {
+        return tileWidth * tileGrid.width();
+    }
+
+    int height() {
+        return tileHeight * tileGrid.height();
+    }
+
+    /**
+     * Renders the whole mosaic, one band of tile rows per task on the given
+     * pool. The number of tile rows finished by a task is passed to
+     * {@code rowsRendered}, from the thread of the task.
+     */
+    BufferedImage render(ForkJoinPool pool, IntConsumer rowsRendered) {
+        BufferedImage result = new BufferedImage(width(), height(), BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        pool.invoke(new RenderBand(pixels, 0, tileGrid.height(), rowsRendered));
+        return result;
+    }
+
+    /**
+     * Renders the tile rows {@code [firstRow, lastRow)} into {@code pixels},
+     * which holds the whole image, like {@link #render} does.
+     */
+    void render(ForkJoinPool pool, int[] pixels, int firstRow, int lastRow) {
+        pool.invoke(new RenderBand(pixels, firstRow, lastRow, rows -> {}));
+    }
+
+    /**
+     * Renders the tile rows {@code [firstRow, lastRow)} into {@code pixels},
+     * which holds {@link #width()} pixels per line. The top line of
+     * {@code firstRow} starts at index {@code offset}.
+     */
+    void renderRows(int[] pixels, int offset, int firstRow, int lastRow) {
+        final int lineWidth = width();
+        for (int row = firstRow; row < lastRow; row++) {
+            int rowOffset = offset + (row - firstRow) * tileHeight * lineWidth;
+            for (int column = 0; column < tileGrid.width(); column++) {
+                if (!tileGrid.contains(column, row)) continue;
+                Tile tile = tileGrid.get(column, row).unwrap();
+                int tileOffset = rowOffset + column * tileWidth;
+                if (atlas != null && atlas.contains(tile)) {
+                    for (int line = 0; line < tileHeight; line++) {
+                        atlas.copyLine(tile, line, pixels, tileOffset + line * lineWidth);
+                    }
+                    continue;
+                }
+                int[] tilePixels = resizedPixelsOf(tile);
+                for (int line = 0; line < tileHeight; line++) {
+                    System.arraycopy(tilePixels, line * tileWidth, pixels, tileOffset + line * lineWidth, tileWidth);
+                }
+                if (placementsLeft.get(tile).decrementAndGet() <= 0) {
+                    resizedTiles.remove(tile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the pixels of the tile resized to the output tile size, row by
+     * row, in a new array.
+     */
+    int[] pixelsOf(Tile tile) {
+        if (atlas != null && atlas.contains(tile)) {
+            int[] pixels = new int[tileWidth * tileHeight];
+            for (int line = 0; line < tileHeight; line++) {
+                atlas.copyLine(tile, line, pixels, line * tileWidth);
+            }
+            return pixels;
+        }
+        return tile.resize(tileWidth, tileHeight);
+    }
+
+    private int[] resizedPixelsOf(Tile tile) {
+        int[] pixels = resizedTiles.get(tile);
+        if (pixels == null) {
+            // two threads may race to resize the same tile; the loser's work is
+            // thrown away, which is cheaper than blocking a map segment meanwhile
+            pixels = pixelsOf(tile);
+            int[] previous = resizedTiles.putIfAbsent(tile, pixels);
+            if (previous != null) {
+                pixels = previous;
+            } else if (placementsLeft.get(tile).get() <= 0) {
+                // the last placement was drawn meanwhile, and its removal must
+                // not be undone by this late insertion
+                resizedTiles.remove(tile, pixels);
+            }
+        }
+        return pixels;
+    }
+
+    @SuppressWarnings("serial")
+    private final class RenderBand extends RecursiveAction {
+        private final int[] pixels;
+        private final int firstRow;
+        private final int lastRow;
+        private final IntConsumer rowsRendered;
+
+        private RenderBand(int[] pixels, int firstRow, int lastRow, IntConsumer rowsRendered) {
+            this.pixels = pixels;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.rowsRendered = rowsRendered;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastRow - firstRow <= 1) {
+                renderRows(pixels, firstRow * tileHeight * width(), firstRow, lastRow);
+                rowsRendered.accept(lastRow - firstRow);
+                return;
+            }
+            int middle = (firstRow + lastRow) >>> 1;
+            invokeAll(
+                    new RenderBand(pixels, firstRow, middle, rowsRendered),
+                    new RenderBand(pixels, middle, lastRow, rowsRendered)
+            );
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A 64-bit difference hash (dHash) of an image's structure.
+ *
+ * <p>The image is shrunk to 9 x 8 pixels, and every bit tells whether a pixel
+ * is brighter than its right neighbour. Shrinking throws away detail, noise
+ * and compression artifacts, and comparing neighbours makes the hash immune to
+ * overall brightness and contrast, so near-duplicate images (bursts, re-encoded
+ * or slightly edited copies) differ in only a few bits.
+ */
+final class PerceptualHash {
+    private static final int WIDTH = 9;
+    private static final int HEIGHT = 8;
+
+    private PerceptualHash() {}
+
+    static long of(BufferedImage image) {
+        BufferedImage small = ImageUtils.resize(image, WIDTH, HEIGHT);
+        int[] row = new int[WIDTH];
+        long hash = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            ImageUtils.readRow(small, 0, y, WIDTH, row);
+            int left = luma(row[0]);
+            for (int x = 1; x < WIDTH; x++) {
+                int right = luma(row[x]);
+                hash = hash << 1 | (left > right ? 1 : 0);
+                left = right;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * The number of bits in which two hashes differ.
+     */
+    static int distance(long hash, long another) {
+        return Long.bitCount(hash ^ another);
+    }
+
+    // Rec. 601 luma, scaled by 1000
+    private static int luma(int rgb) {
+        return 299 * ((rgb >> 16) & 0xFF) + 587 * ((rgb >> 8) & 0xFF) + 114 * (rgb & 0xFF);
+    }
+}
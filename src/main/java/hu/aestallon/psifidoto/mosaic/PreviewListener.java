@@ -0,0 +1,43 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+/**
+ * Receives the ever better images of a mosaic built progressively, from the
+ * thread that called {@link MosaicBuilder#buildProgressively(PreviewListener)}.
+ *
+ * <p>Images passed to the listener are not touched by the builder afterwards,
+ * except for the one being rendered in the {@link Stage#RENDERED} stage, which
+ * is filled in place: each of its regions is final once reported.
+ */
+public interface PreviewListener {
+
+    enum Stage {
+        /**
+         * Tiles placed greedily by average colour, drawn from their thumbnails
+         * in the tile cache, or as blocks of their average colour without one,
+         * at most 1024 pixels wide.
+         */
+        SKETCH,
+        /**
+         * Tiles placed as configured, drawn like in the {@link #SKETCH} stage.
+         */
+        PLACED,
+        /** The exported mosaic, rendered a band of tile rows at a time. */
+        RENDERED
+    }
+
+    /**
+     * Called once the image of a stage is complete. The {@link Stage#RENDERED}
+     * image is the result of the build.
+     */
+    void imageReady(Stage stage, BufferedImage image);
+
+    /**
+     * Called once a region of the {@link Stage#RENDERED} image has been drawn,
+     * before the whole image is ready. The image is the same object for every
+     * call.
+     */
+    default void regionRendered(BufferedImage image, Rectangle region) {}
+}
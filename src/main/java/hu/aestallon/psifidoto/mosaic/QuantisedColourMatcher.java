@@ -0,0 +1,99 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Matches tiles by average colour, approximately: the first candidates of a
+ * cell are the short list of its colour's bucket in the {@link ColourLookupTable},
+ * ranked by their actual distance to the cell. Only if all of them are passed
+ * over (e.g. for being repeated too close) does the matcher fall back to an
+ * exact nearest-first search, which skips the tiles already returned.
+ */
+final class QuantisedColourMatcher implements TileMatcher {
+    private final IntGrid colourGrid;
+    private final ColourLookupTable table;
+
+    QuantisedColourMatcher(IntGrid colourGrid, TileLibrary library) {
+        this.colourGrid = colourGrid;
+        this.table = library.colourLookupTable();
+    }
+
+    @Override
+    public Candidates candidates(int x, int y) {
+        return new ShortListCandidates(colourGrid.get(x, y));
+    }
+
+    private final class ShortListCandidates implements Candidates {
+        private final int rgb;
+        private final TileColourIndex index;
+        // tree positions of the short list and their distances, nearest first
+        private final int[] positions;
+        private final int[] distances;
+        private int returned;
+        private TileColourIndex.Cursor fallback;
+        private int next = -1;
+        private float cost = -1;
+
+        private ShortListCandidates(int rgb) {
+            this.rgb = rgb;
+            this.index = table.index();
+            int[] list = table.listOf(rgb);
+            this.positions = new int[list.length];
+            this.distances = new int[list.length];
+            for (int k = 0; k < list.length; k++) {
+                int position = list[k];
+                int distance = index.distanceTo(rgb, position);
+                int i = k;
+                for (; i > 0 && distances[i - 1] > distance; i--) {
+                    positions[i] = positions[i - 1];
+                    distances[i] = distances[i - 1];
+                }
+                positions[i] = position;
+                distances[i] = distance;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next >= 0) return true;
+            if (returned < positions.length) {
+                next = positions[returned];
+                return true;
+            }
+            if (fallback == null) fallback = index.nearestFirst(rgb);
+            while (fallback.hasNext()) {
+                int position = fallback.nextPosition();
+                if (!isInShortList(position)) {
+                    next = position;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Tile next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            if (returned < positions.length) {
+                cost = distances[returned++];
+            } else {
+                cost = fallback.lastDistance();
+            }
+            Tile tile = index.tileAt(next);
+            next = -1;
+            return tile;
+        }
+
+        @Override
+        public float cost() {
+            return cost;
+        }
+
+        private boolean isInShortList(int position) {
+            for (int p : positions) {
+                if (p == position) return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Describes an image (or a region of one) by the CIELAB colours of a 3x3 grid
+ * of its sub-regions, laid out row by row as {@code [L, a, b, L, a, b, ...]}.
+ *
+ * <p>Comparing descriptors rather than single average colours lets matching
+ * tell apart tiles whose colours are distributed differently, e.g. a dark top
+ * over a light bottom versus an evenly grey image.
+ */
+final class RegionDescriptor {
+    static final int GRID = 3;
+    static final int LENGTH = GRID * GRID * 3;
+
+    // sRGB channel value -> linear intensity
+    private static final float[] LINEAR = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double c = i / 255d;
+            LINEAR[i] = (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+        }
+    }
+
+    private RegionDescriptor() {}
+
+    static float[] of(BufferedImage image) {
+        float[] descriptor = new float[LENGTH];
+        int width = image.getWidth(), height = image.getHeight();
+        for (int gy = 0; gy < GRID; gy++) {
+            for (int gx = 0; gx < GRID; gx++) {
+                int rgb = ImageUtils.averageRgbOfRegion(
+                        image,
+                        lowerBound(0, width, gx), upperBound(0, width, gx),
+                        lowerBound(0, height, gy), upperBound(0, height, gy)
+                );
+                toLab(rgb, descriptor, (gy * GRID + gx) * 3);
+            }
+        }
+        return descriptor;
+    }
+
+    /**
+     * Writes the descriptor of the region {@code [x0, x1) x [y0, y1)} of the
+     * table's image into {@code out}, starting at {@code offset}.
+     */
+    static void ofRegion(SummedAreaTable table, int x0, int x1, int y0, int y1, float[] out, int offset) {
+        for (int gy = 0; gy < GRID; gy++) {
+            for (int gx = 0; gx < GRID; gx++) {
+                int rgb = table.averageColourOfRegion(
+                        lowerBound(x0, x1, gx), upperBound(x0, x1, gx),
+                        lowerBound(y0, y1, gy), upperBound(y0, y1, gy)
+                );
+                toLab(rgb, out, offset + (gy * GRID + gx) * 3);
+            }
+        }
+    }
+
+    /**
+     * Converts a packed sRGB colour to CIELAB (D65 white point).
+     */
+    static void toLab(int rgb, float[] out, int offset) {
+        float r = LINEAR[(rgb >> 16) & 0xFF];
+        float g = LINEAR[(rgb >> 8) & 0xFF];
+        float b = LINEAR[rgb & 0xFF];
+
+        float x = labF((0.4124f * r + 0.3576f * g + 0.1805f * b) / 0.95047f);
+        float y = labF(0.2126f * r + 0.7152f * g + 0.0722f * b);
+        float z = labF((0.0193f * r + 0.1192f * g + 0.9505f * b) / 1.08883f);
+
+        out[offset]     = 116f * y - 16f;
+        out[offset + 1] = 500f * (x - y);
+        out[offset + 2] = 200f * (y - z);
+    }
+
+    private static float labF(float t) {
+        return t > 0.008856f ? (float) Math.cbrt(t) : 7.787f * t + 16f / 116f;
+    }
+
+    // sub-region bounds of a span, never empty as long as the span is not
+    private static int lowerBound(int from, int to, int part) {
+        return from + (to - from) * part / GRID;
+    }
+
+    private static int upperBound(int from, int to, int part) {
+        return Math.max(lowerBound(from, to, part) + 1, from + (to - from) * (part + 1) / GRID);
+    }
+}
@@ -0,0 +1,172 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Places tiles greedily, like centre-biased placement does, but in rectangular
+ * regions of the grid processed in parallel.
+ *
+ * <p>Regions are at least as large as the minimum repetition distance on each
+ * side, and they are processed in four phases, like the colours of a 2x2
+ * checkerboard: two regions of the same phase are always a whole region apart,
+ * so they can never place a tile too close to each other and need no
+ * coordination. Regions of a phase check their candidates against what they
+ * have placed themselves and against the placements of earlier phases, which
+ * are merged into a shared record once a phase ends.
+ *
+ * <p>Within a region, cells are filled in rings around its centre. Where the
+ * region borders are laid is derived from the seed, which is thus the only
+ * source of variation: the result is the same for the same seed, no matter how
+ * the work is scheduled.
+ */
+final class RegionPlacement {
+    static final int MIN_REGION_SIDE = 16;
+
+    private final TileMatcher matcher;
+    private final int width;
+    private final int height;
+    private final int minRepetitionDistance;
+    private final int regionSide;
+    // where the first full region starts in both directions
+    private final int offsetX;
+    private final int offsetY;
+    private final AtomicInteger rejectedCandidates = new AtomicInteger();
+
+    RegionPlacement(TileMatcher matcher, int width, int height, int minRepetitionDistance, long seed) {
+        this.matcher = matcher;
+        this.width = width;
+        this.height = height;
+        this.minRepetitionDistance = minRepetitionDistance;
+        this.regionSide = Math.max(MIN_REGION_SIDE, minRepetitionDistance);
+        SplittableRandom random = new SplittableRandom(seed);
+        this.offsetX = random.nextInt(regionSide);
+        this.offsetY = random.nextInt(regionSide);
+    }
+
+    /**
+     * Returns the tile of every cell, in row-major order. The number of cells
+     * in every finished region is passed to {@code cellsPlaced}, from the
+     * thread which filled the region.
+     */
+    Tile[] place(IntConsumer cellsPlaced) {
+        Tile[] placed = new Tile[width * height];
+        List<List<Region>> phases = new ArrayList<>(4);
+        for (int phase = 0; phase < 4; phase++) {
+            phases.add(new ArrayList<>());
+        }
+        // the region boundaries are the offsets plus multiples of the region
+        // side, with a partial region before the first one if the offset is not 0
+        int columnCount = regionCount(width, offsetX);
+        int rowCount = regionCount(height, offsetY);
+        for (int row = 0; row < rowCount; row++) {
+            for (int column = 0; column < columnCount; column++) {
+                phases.get((row % 2) * 2 + column % 2).add(new Region(
+                        regionStart(column, offsetX), regionStart(column + 1, offsetX, width),
+                        regionStart(row, offsetY), regionStart(row + 1, offsetY, height)
+                ));
+            }
+        }
+
+        TilePlacements earlierPhases = new TilePlacements();
+        for (List<Region> phase : phases) {
+            phase.parallelStream().forEach(region -> {
+                region.fill(placed, earlierPhases);
+                cellsPlaced.accept(region.cellCount());
+            });
+            for (Region region : phase) {
+                region.forEachCell((x, y) -> earlierPhases.add(placed[y * width + x], x, y));
+            }
+        }
+        return placed;
+    }
+
+    /**
+     * Returns how many candidates were passed over for being repeated too close
+     * to themselves.
+     */
+    int rejectedCandidates() {
+        return rejectedCandidates.get();
+    }
+
+    private int regionCount(int length, int offset) {
+        int partial = offset == 0 ? 0 : 1;
+        return partial + (length - offset + regionSide - 1) / regionSide;
+    }
+
+    private int regionStart(int index, int offset) {
+        if (offset == 0) return index * regionSide;
+        return index == 0 ? 0 : offset + (index - 1) * regionSide;
+    }
+
+    private int regionStart(int index, int offset, int length) {
+        return Math.min(length, regionStart(index, offset));
+    }
+
+    private interface CellConsumer {
+        void accept(int x, int y);
+    }
+
+    private final class Region {
+        private final int x0, x1, y0, y1;
+
+        private Region(int x0, int x1, int y0, int y1) {
+            this.x0 = x0;
+            this.x1 = x1;
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        private int cellCount() {
+            return (x1 - x0) * (y1 - y0);
+        }
+
+        private void forEachCell(CellConsumer consumer) {
+            for (int y = y0; y < y1; y++) {
+                for (int x = x0; x < x1; x++) {
+                    consumer.accept(x, y);
+                }
+            }
+        }
+
+        private void fill(Tile[] placed, TilePlacements earlierPhases) {
+            final int regionWidth = x1 - x0;
+            final int centreX = regionWidth / 2;
+            final int centreY = (y1 - y0) / 2;
+            // rings of increasing Chebyshev distance around the centre, which
+            // is the order a breadth-first walk over the 8-neighbourhood takes
+            int[] order = IntStream.range(0, regionWidth * (y1 - y0))
+                    .boxed()
+                    .sorted(Comparator.comparingInt(i -> Math.max(
+                            Math.abs(i % regionWidth - centreX),
+                            Math.abs(i / regionWidth - centreY))))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+
+            TilePlacements placements = new TilePlacements();
+            int rejected = 0;
+            for (int i : order) {
+                int x = x0 + i % regionWidth;
+                int y = y0 + i / regionWidth;
+                TileMatcher.Candidates candidates = matcher.candidates(x, y);
+                Tile tile = candidates.next();
+                while (
+                        candidates.hasNext() && (
+                                placements.isWithin(tile, x, y, minRepetitionDistance) ||
+                                earlierPhases.isWithin(tile, x, y, minRepetitionDistance))
+                ) {
+                    tile = candidates.next();
+                    rejected++;
+                }
+                placed[y * width + x] = tile;
+                placements.add(tile, x, y);
+            }
+            rejectedCandidates.addAndGet(rejected);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Summed-area table of the squared colour channels of an image.
+ *
+ * <p>Once built (in a single row-major pass over the image), the squared-mean
+ * colour of any rectangular region can be looked up in constant time, which
+ * gives the same result as {@link ImageUtils#averageRgbOfRegion}.
+ * The table takes up 24 bytes per pixel.
+ */
+public final class SummedAreaTable {
+    private static final int CHANNELS = 3;
+
+    public static SummedAreaTable ofSquaredChannels(BufferedImage image) {
+        return new SummedAreaTable(image);
+    }
+
+    private final int width;
+    private final int height;
+    // (width + 1) x (height + 1) entries of [r, g, b]: the sums of the squared
+    // channels over all pixels above and to the left of the entry
+    private final long[] sums;
+
+    private SummedAreaTable(BufferedImage image) {
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        final int stride = (width + 1) * CHANNELS;
+        this.sums = new long[Math.multiplyExact(height + 1, stride)];
+
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            ImageUtils.readRow(image, 0, y, width, row);
+            long r = 0, g = 0, b = 0;
+            int above = y * stride + CHANNELS;
+            int here = above + stride;
+            for (int x = 0; x < width; x++, above += CHANNELS, here += CHANNELS) {
+                int pixel = row[x];
+                int pixelR = (pixel >> 16) & 0xFF;
+                int pixelG = (pixel >> 8) & 0xFF;
+                int pixelB = pixel & 0xFF;
+                r += pixelR * pixelR;
+                g += pixelG * pixelG;
+                b += pixelB * pixelB;
+                sums[here]     = sums[above] + r;
+                sums[here + 1] = sums[above + 1] + g;
+                sums[here + 2] = sums[above + 2] + b;
+            }
+        }
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Returns the squared-mean colour of the region {@code [x0, x1) x [y0, y1)}
+     * as a packed {@code 0xRRGGBB} int.
+     */
+    public int averageColourOfRegion(int x0, int x1, int y0, int y1) {
+        if (x0 < 0 || x1 > width || y0 < 0 || y1 > height || x0 >= x1 || y0 >= y1) {
+            throw new IllegalArgumentException("Illegal region!");
+        }
+        long pixelCount = (long) (x1 - x0) * (y1 - y0);
+        int rgb = 0;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            long sum = sumOf(x1, y1, channel) - sumOf(x0, y1, channel) - sumOf(x1, y0, channel) + sumOf(x0, y0, channel);
+            long mean = Math.round(Math.sqrt(sum / pixelCount));
+            rgb = (rgb << 8) | (int) mean;
+        }
+        return rgb;
+    }
+
+    private long sumOf(int x, int y, int channel) {
+        return sums[(y * (width + 1) + x) * CHANNELS + channel];
+    }
+}
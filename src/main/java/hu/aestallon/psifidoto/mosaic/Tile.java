@@ -1,10 +1,14 @@
 package hu.aestallon.psifidoto.mosaic;
 
+import hu.aestallon.psifidoto.util.io.ImageFile;
+
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class Tile {
-    private static int idCounter = 0;
+    private static final AtomicInteger idCounter = new AtomicInteger();
 
     public enum AspectRatio {
         SQUARE(1, 1),
@@ -29,49 +33,145 @@ public class Tile {
     }
 
     private final int id;
-    private final Color colour;
-    private final BufferedImage image;
+    // packed 0xRRGGBB
+    private final int colour;
+    private final float[] descriptor;
+    private final long hash;
+    // the image file the tile was cut from, null if its image was given in memory
+    private final ImageFile source;
+    private final Supplier<BufferedImage> image;
+    private final Supplier<TileMipmap> mipmap;
 
     @Deprecated
     public Tile(BufferedImage image) {
-        this.id = idCounter++;
-        this.image = image;
-        this.colour = ImageUtils.calculateAverageColourSquared(image);
+        this.id = idCounter.getAndIncrement();
+        this.image = () -> image;
+        this.mipmap = lazyMipmapOf(image);
+        this.source = null;
+        this.colour = ImageUtils.averageRgbOf(image);
+        this.descriptor = RegionDescriptor.of(image);
+        this.hash = PerceptualHash.of(image);
     }
 
     public Tile(BufferedImage image, AspectRatio aspectRatio) {
-        this.id = idCounter++;
-        this.image = cropToAspectRatio(image, aspectRatio);
-        this.colour = ImageUtils.calculateAverageColourSquared(this.image);
+        this.id = idCounter.getAndIncrement();
+        BufferedImage croppedImage = cropToAspectRatio(image, aspectRatio);
+        this.image = () -> croppedImage;
+        this.mipmap = lazyMipmapOf(croppedImage);
+        this.source = null;
+        this.colour = ImageUtils.averageRgbOf(croppedImage);
+        this.descriptor = RegionDescriptor.of(croppedImage);
+        this.hash = PerceptualHash.of(croppedImage);
     }
 
-    private Tile(BufferedImage image, int id, Color colour) {
-        this.image = image;
+    // a tile whose image is not held on to: it is looked up in the pixel cache
+    // when drawn, and decoded (already cropped) from the source file on a miss
+    Tile(ImageFile source,
+         Supplier<BufferedImage> decoder,
+         TilePixelCache pixels,
+         int colour,
+         float[] descriptor,
+         long hash) {
+        this.id = idCounter.getAndIncrement();
+        this.mipmap = () -> pixels.get(this, () -> TileMipmap.of(decoder.get()));
+        this.image = () -> mipmap.get().image();
+        this.source = source;
+        this.colour = colour;
+        this.descriptor = descriptor;
+        this.hash = hash;
+    }
+
+    private Tile(int id,
+                 int colour,
+                 float[] descriptor,
+                 long hash,
+                 ImageFile source,
+                 Supplier<BufferedImage> image,
+                 Supplier<TileMipmap> mipmap) {
         this.id = id;
         this.colour = colour;
+        this.descriptor = descriptor;
+        this.hash = hash;
+        this.source = source;
+        this.image = image;
+        this.mipmap = mipmap;
     }
 
-    private BufferedImage cropToAspectRatio(BufferedImage image, AspectRatio aspectRatio) {
-        int originalWidth = image.getWidth();
-        int originalHeight = image.getHeight();
+    /**
+     * Creates a file-backed tile from its freshly decoded and cropped image.
+     * The image is only analysed, not cached: most tiles of a large library
+     * would be evicted before export anyway, so the mipmap of a tile is built
+     * on its first resize instead.
+     */
+    static Tile ofSource(ImageFile source,
+                         BufferedImage croppedImage,
+                         Supplier<BufferedImage> decoder,
+                         TilePixelCache pixels) {
+        return new Tile(
+                source, decoder, pixels,
+                ImageUtils.averageRgbOf(croppedImage),
+                RegionDescriptor.of(croppedImage),
+                PerceptualHash.of(croppedImage)
+        );
+    }
+
+    // builds the mipmap of an in-memory tile when first needed, then keeps it
+    private static Supplier<TileMipmap> lazyMipmapOf(BufferedImage image) {
+        return new Supplier<>() {
+            private volatile TileMipmap mipmap;
+
+            @Override
+            public TileMipmap get() {
+                TileMipmap result = mipmap;
+                if (result == null) {
+                    // a race only builds the same mipmap twice
+                    result = TileMipmap.of(image);
+                    mipmap = result;
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Returns the largest centred region of a {@code width} x {@code height}
+     * image with the given aspect ratio.
+     */
+    static Rectangle cropRegion(int width, int height, AspectRatio aspectRatio) {
         int croppedWidth, croppedHeight;
 
         if (aspectRatio == AspectRatio.SQUARE) {
-            croppedWidth = croppedHeight = Math.min(originalWidth, originalHeight);
+            croppedWidth = croppedHeight = Math.min(width, height);
         } else {
             double desiredRatio = aspectRatio.ratio();
-            double originalRatio = (double) originalWidth / originalHeight;
+            double originalRatio = (double) width / height;
 
             if (Double.compare(originalRatio, desiredRatio) > 0) {
-                croppedHeight = originalHeight;
+                croppedHeight = height;
                 croppedWidth = (int) Math.round(desiredRatio * croppedHeight);
             } else if (Double.compare(originalRatio, desiredRatio) < 0) {
-                croppedWidth = originalWidth;
+                croppedWidth = width;
                 croppedHeight = (int) Math.round(croppedWidth / desiredRatio);
             } else {
-                return image;
+                croppedWidth = width;
+                croppedHeight = height;
             }
         }
+        return new Rectangle(
+                (width - croppedWidth) / 2, (height - croppedHeight) / 2,
+                croppedWidth, croppedHeight
+        );
+    }
+
+    static BufferedImage cropToAspectRatio(BufferedImage image, AspectRatio aspectRatio) {
+        int originalWidth = image.getWidth();
+        int originalHeight = image.getHeight();
+        Rectangle region = cropRegion(originalWidth, originalHeight, aspectRatio);
+        if (region.width == originalWidth && region.height == originalHeight) {
+            return image;
+        }
+        int croppedWidth = region.width, croppedHeight = region.height;
+
         BufferedImage croppedImage = new BufferedImage(croppedWidth, croppedHeight, image.getType());
         Graphics2D g = croppedImage.createGraphics();
         g.drawImage(
@@ -86,26 +186,71 @@ public class Tile {
         return croppedImage;
     }
 
-    @SuppressWarnings("unused")
     public Color getColour() {
+        return new Color(colour);
+    }
+
+    /**
+     * Returns the average colour of the tile as a packed {@code 0xRRGGBB} int.
+     */
+    int getRgb() {
         return colour;
     }
 
+    // shared, must not be modified
+    float[] getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * Returns the {@link PerceptualHash} of the tile's cropped image.
+     */
+    long getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the image file this tile was cut from, or {@code null} if its
+     * image was given in memory.
+     */
+    ImageFile getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the cropped image of the tile. File-backed tiles may have to
+     * decode it again, so callers should not hold on to it longer than needed.
+     */
     public BufferedImage getImage() {
-        return image;
+        return image.get();
+    }
+
+    /**
+     * Returns the pixels of the tile resized to {@code width} x {@code height},
+     * as packed {@code 0xRRGGBB} ints in a new array. Resizing starts from the
+     * tile's mipmap, which is built only once (though file-backed tiles may
+     * have to build it again after their pixels were evicted).
+     */
+    int[] resize(int width, int height) {
+        return mipmap.get().resize(width, height);
     }
 
     @SuppressWarnings("unused")
     public Tile copy() {
-        return new Tile(this.image, this.id, this.colour);
+        return new Tile(this.id, this.colour, this.descriptor, this.hash, this.source, this.image, this.mipmap);
     }
 
     public int colourDistance(Color target) {
-        int dR = this.colour.getRed() - target.getRed();
-        int dG = this.colour.getGreen() - target.getGreen();
-        int dB = this.colour.getBlue() - target.getBlue();
-        int distanceSqr = (dR * dR) + (dG * dG) + (dB * dB);
-        return (int) Math.sqrt(distanceSqr);
+        return (int) Math.sqrt(squaredColourDistance(target.getRGB()));
+    }
+
+    /**
+     * The squared distance of the tile's average colour to a packed
+     * {@code 0xRRGGBB} colour. Orders tiles the same as
+     * {@link #colourDistance(Color)}, without the square root.
+     */
+    int squaredColourDistance(int rgb) {
+        return ImageUtils.squaredDistance(colour, rgb);
     }
 
     @Override
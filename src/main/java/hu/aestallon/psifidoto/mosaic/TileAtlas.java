@@ -0,0 +1,300 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import hu.aestallon.psifidoto.util.io.ImageFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A file of tile images already resized to the output tile size, which export
+ * copies pixels from without decoding or resampling anything.
+ *
+ * <p>The atlas consists of two files: the pixel file itself, made up of fixed
+ * size slots of packed {@code 0xRRGGBB} ints in native byte order (one slot per
+ * tile, row by row), which is memory-mapped; and an index next to it, with the
+ * suffix {@value #INDEX_SUFFIX}, recording which image file (of which size
+ * and modification time) each slot holds.
+ *
+ * <p>{@link #update(Collection)} brings the atlas up to date with a library:
+ * only tiles whose files are new or have changed since are resized and written,
+ * into slots freed up by entries of changed or deleted files if possible. The
+ * tile size and aspect ratio of an atlas are fixed when it is created. Only
+ * tiles loaded from files can be put into an atlas; others are resized during
+ * export as usual.
+ *
+ * <p>Every update that writes pixels stamps the index with a new generation.
+ * Another instance opened on the same file earlier maps its tiles to slots
+ * that may since hold other tiles, so it is only {@linkplain #isCurrent()
+ * current} while the generation it last saw is still the one on disk.
+ */
+final class TileAtlas {
+    static final String INDEX_SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x50534641; // "PSFA"
+    private static final int VERSION = 2;
+    // a single mapping may not exceed 2 GB
+    private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+    /**
+     * Opens the atlas stored in {@code file} for tiles of the given size, or
+     * prepares an empty one if there is none. Nothing is written until
+     * {@link #update(Collection)}.
+     *
+     * @throws IllegalArgumentException if the atlas in {@code file} is of a
+     *                                  different tile size or aspect ratio
+     */
+    static TileAtlas open(Path file, int tileWidth, int tileHeight, Tile.AspectRatio aspectRatio) {
+        TileAtlas atlas = new TileAtlas(file, tileWidth, tileHeight, aspectRatio);
+        atlas.readIndex();
+        return atlas;
+    }
+
+    private final Path file;
+    private final Path indexFile;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final Tile.AspectRatio aspectRatio;
+    private final int slotInts;
+    private final int slotsPerSegment;
+
+    private final Map<String, Entry> entries;
+    private long generation;
+    private int slotCount;
+    private final Map<Tile, Integer> tileSlots;
+    private List<IntBuffer> segments;
+
+    private TileAtlas(Path file, int tileWidth, int tileHeight, Tile.AspectRatio aspectRatio) {
+        this.file = file;
+        this.indexFile = file.resolveSibling(file.getFileName() + INDEX_SUFFIX);
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.aspectRatio = aspectRatio;
+        this.slotInts = Math.multiplyExact(tileWidth, tileHeight);
+        this.slotsPerSegment = (int) Math.max(1, MAX_SEGMENT_BYTES / ((long) slotInts * Integer.BYTES));
+        this.entries = new HashMap<>();
+        this.tileSlots = new HashMap<>();
+        this.segments = List.of();
+    }
+
+    int tileWidth() {
+        return tileWidth;
+    }
+
+    int tileHeight() {
+        return tileHeight;
+    }
+
+    /**
+     * Makes sure every file-backed tile of {@code tiles} has an up-to-date slot,
+     * resizing and writing the missing ones in parallel, then saves the index,
+     * under a new generation if anything was written. Entries of files that no
+     * longer exist are dropped. Returns the number of tiles written.
+     */
+    int update(Collection<Tile> tiles) {
+        tileSlots.clear();
+        entries.keySet().removeIf(key -> !Files.exists(Path.of(key)));
+        BitSet usedSlots = new BitSet();
+        entries.values().forEach(entry -> usedSlots.set(entry.slot));
+
+        // tiles to resize, by source file: several tiles may share a file
+        Map<String, Tile> missing = new LinkedHashMap<>();
+        List<Tile> waiting = new ArrayList<>();
+        for (Tile tile : tiles) {
+            ImageFile source = tile.getSource();
+            if (source == null) continue;
+            String key = keyOf(source);
+            if (missing.containsKey(key)) {
+                waiting.add(tile);
+                continue;
+            }
+            BasicFileAttributes attributes = attributesOf(source);
+            Entry entry = entries.get(key);
+            if (entry != null && entry.matches(attributes)) {
+                tileSlots.put(tile, entry.slot);
+                continue;
+            }
+            if (entry != null) usedSlots.clear(entry.slot);
+            entries.put(key, new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), -1));
+            missing.put(key, tile);
+            waiting.add(tile);
+        }
+        for (String key : missing.keySet()) {
+            int slot = usedSlots.nextClearBit(0);
+            usedSlots.set(slot);
+            entries.get(key).slot = slot;
+        }
+        for (Tile tile : waiting) {
+            tileSlots.put(tile, entries.get(keyOf(tile.getSource())).slot);
+        }
+        slotCount = usedSlots.length();
+        map();
+
+        missing.values().parallelStream().forEach(tile -> {
+            int[] pixels = tile.resize(tileWidth, tileHeight);
+            int slot = tileSlots.get(tile);
+            segmentOf(slot).put(offsetOf(slot), pixels, 0, slotInts);
+        });
+        if (!missing.isEmpty()) generation++;
+        saveIndex();
+        return missing.size();
+    }
+
+    /**
+     * Tells whether no other instance has written to the atlas file since this
+     * one was last updated, i.e. whether its slots still hold its tiles.
+     */
+    boolean isCurrent() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            return in.readInt() == MAGIC && in.readInt() == VERSION && in.readLong() == generation;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    boolean contains(Tile tile) {
+        return tileSlots.containsKey(tile);
+    }
+
+    /**
+     * Copies a line of the tile's resized image into {@code destination}. The
+     * tile must be {@linkplain #contains(Tile) in the atlas}.
+     */
+    void copyLine(Tile tile, int line, int[] destination, int offset) {
+        int slot = tileSlots.get(tile);
+        segmentOf(slot).get(offsetOf(slot) + line * tileWidth, destination, offset, tileWidth);
+    }
+
+    private IntBuffer segmentOf(int slot) {
+        return segments.get(slot / slotsPerSegment);
+    }
+
+    private int offsetOf(int slot) {
+        return (slot % slotsPerSegment) * slotInts;
+    }
+
+    private void map() {
+        long slotBytes = (long) slotInts * Integer.BYTES;
+        List<IntBuffer> mapped = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(
+                file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // mappings stay valid after the channel is closed
+            for (int first = 0; first < slotCount; first += slotsPerSegment) {
+                int slots = Math.min(slotsPerSegment, slotCount - first);
+                mapped.add(channel
+                        .map(FileChannel.MapMode.READ_WRITE, first * slotBytes, slots * slotBytes)
+                        .order(ByteOrder.nativeOrder())
+                        .asIntBuffer());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to map " + file, e);
+        }
+        segments = mapped;
+    }
+
+    private static String keyOf(ImageFile imageFile) {
+        return imageFile.toPath().toAbsolutePath().normalize().toString();
+    }
+
+    private static BasicFileAttributes attributesOf(ImageFile imageFile) {
+        try {
+            return Files.readAttributes(imageFile.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // index file
+
+    private void readIndex() {
+        if (!Files.exists(file)) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+            long readGeneration = in.readLong();
+            int width = in.readInt(), height = in.readInt();
+            if (width != tileWidth || height != tileHeight) {
+                throw new IllegalArgumentException(
+                        "Atlas " + file + " holds " + width + "x" + height + " tiles, not "
+                        + tileWidth + "x" + tileHeight
+                );
+            }
+            if (in.readInt() != aspectRatio.ordinal()) {
+                throw new IllegalArgumentException("Atlas " + file + " holds tiles of another aspect ratio than " + aspectRatio);
+            }
+            int count = in.readInt();
+            Map<String, Entry> read = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                read.put(in.readUTF(), new Entry(in.readLong(), in.readLong(), in.readInt()));
+            }
+            entries.putAll(read);
+            generation = readGeneration;
+        } catch (NoSuchFileException e) {
+            // no index yet, the pixel file is overwritten
+        } catch (IOException e) {
+            // corrupt index, rebuild from scratch
+            entries.clear();
+        }
+    }
+
+    private void saveIndex() {
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(tileWidth);
+            out.writeInt(tileHeight);
+            out.writeInt(aspectRatio.ordinal());
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().lastModified);
+                out.writeInt(e.getValue().slot);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write " + indexFile, e);
+        }
+        try {
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write " + indexFile, e);
+        }
+    }
+
+    private static final class Entry {
+        private final long size;
+        private final long lastModified;
+        private int slot;
+
+        private Entry(long size, long lastModified, int slot) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.slot = slot;
+        }
+
+        private boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis();
+        }
+    }
+}
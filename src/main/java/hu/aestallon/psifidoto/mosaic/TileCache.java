@@ -0,0 +1,266 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import hu.aestallon.psifidoto.util.io.ImageFile;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent index of the tile images found in a single directory.
+ *
+ * <p>For every image file the index records its size and modification time,
+ * its per-{@link Tile.AspectRatio} average colours, {@link RegionDescriptor}s and
+ * {@link PerceptualHash}es and a small thumbnail, so a tile library can be
+ * matched against, and previews of the mosaic drawn, without decoding the full
+ * images. An entry whose file has since changed on disk is treated as missing.
+ *
+ * <p>The index lives in the directory itself, in a file named
+ * {@value #FILE_NAME}. A missing, outdated or corrupt index file is silently
+ * replaced on the next {@link #save()}.
+ */
+final class TileCache {
+    static final String FILE_NAME = ".psifidoto-tiles.idx";
+    static final int THUMBNAIL_SIZE = 32;
+
+    private static final int MAGIC = 0x50534654; // "PSFT"
+    private static final int VERSION = 3;
+
+    static TileCache open(Path directory) {
+        TileCache cache = new TileCache(directory);
+        cache.read();
+        return cache;
+    }
+
+    private final Path directory;
+    private final Path indexFile;
+    private final Map<String, Entry> entries;
+    private boolean dirty;
+
+    private TileCache(Path directory) {
+        this.directory = directory;
+        this.indexFile = directory.resolve(FILE_NAME);
+        this.entries = new HashMap<>();
+    }
+
+    /**
+     * Returns the up-to-date entry recorded for the image file, or {@code null}
+     * if there is none or the file has changed since it was recorded.
+     */
+    Entry lookup(ImageFile imageFile) {
+        String key = keyOf(imageFile);
+        BasicFileAttributes attributes = attributesOf(imageFile);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        return entry != null && entry.matches(attributes) ? entry : null;
+    }
+
+    /**
+     * Returns the entry for the image file, creating a fresh one (with the
+     * thumbnail of the given decoded, cropped image) if the recorded one is
+     * missing or outdated.
+     */
+    Entry update(ImageFile imageFile, BufferedImage decodedImage) {
+        Entry entry = lookup(imageFile);
+        if (entry != null) return entry;
+
+        // file I/O and scaling happen outside the lock, so loader threads only
+        // contend for the map itself
+        BasicFileAttributes attributes = attributesOf(imageFile);
+        entry = new Entry(
+                attributes.size(),
+                attributes.lastModifiedTime().toMillis(),
+                ImageUtils.thumbnailOf(decodedImage, THUMBNAIL_SIZE)
+        );
+        synchronized (this) {
+            entries.put(keyOf(imageFile), entry);
+            dirty = true;
+        }
+        return entry;
+    }
+
+    synchronized void putTile(Entry entry, Tile.AspectRatio aspectRatio, Tile tile) {
+        entry.colours[aspectRatio.ordinal()] = tile.getRgb();
+        entry.descriptors[aspectRatio.ordinal()] = tile.getDescriptor();
+        entry.hashes[aspectRatio.ordinal()] = tile.getHash();
+        entry.colourMask |= 1 << aspectRatio.ordinal();
+        dirty = true;
+    }
+
+    /**
+     * Writes the index back to disk if anything has changed since it was read.
+     * Entries of files which no longer exist are dropped.
+     */
+    synchronized void save() {
+        if (entries.keySet().removeIf(key -> !Files.exists(directory.resolve(key)))) dirty = true;
+        if (!dirty) return;
+        Path tempFile = directory.resolve(FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                e.getValue().writeTo(out);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        dirty = false;
+    }
+
+    private void read() {
+        if (!Files.isRegularFile(indexFile)) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                entries.put(key, Entry.readFrom(in));
+            }
+        } catch (IOException e) {
+            // a broken index is as good as none: it is rebuilt on the next save
+            entries.clear();
+            dirty = true;
+        }
+    }
+
+    private String keyOf(ImageFile imageFile) {
+        return directory.relativize(imageFile.toPath().toAbsolutePath()).toString();
+    }
+
+    private static BasicFileAttributes attributesOf(ImageFile imageFile) {
+        try {
+            return Files.readAttributes(imageFile.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            throw new IllegalArgumentException("Image file " + imageFile.toPath() + " does not exist!", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static final class Entry {
+        private final long size;
+        private final long lastModified;
+        private final BufferedImage thumbnail;
+        private final int[] colours = new int[Tile.AspectRatio.values().length];
+        private final float[][] descriptors = new float[Tile.AspectRatio.values().length][];
+        private final long[] hashes = new long[Tile.AspectRatio.values().length];
+        private int colourMask;
+
+        private Entry(long size, long lastModified, BufferedImage thumbnail) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.thumbnail = thumbnail;
+        }
+
+        /**
+         * The image, cropped to the aspect ratio it was first loaded for,
+         * scaled down so that its longer side is
+         * {@value TileCache#THUMBNAIL_SIZE} pixels. Previews crop it again to
+         * the aspect ratio of the tile drawn.
+         */
+        BufferedImage thumbnail() {
+            return thumbnail;
+        }
+
+        boolean hasColour(Tile.AspectRatio aspectRatio) {
+            return (colourMask & (1 << aspectRatio.ordinal())) != 0;
+        }
+
+        int colour(Tile.AspectRatio aspectRatio) {
+            if (!hasColour(aspectRatio)) throw new IllegalStateException("No colour recorded for " + aspectRatio);
+            return colours[aspectRatio.ordinal()];
+        }
+
+        float[] descriptor(Tile.AspectRatio aspectRatio) {
+            if (!hasColour(aspectRatio)) throw new IllegalStateException("No descriptor recorded for " + aspectRatio);
+            return descriptors[aspectRatio.ordinal()];
+        }
+
+        long hash(Tile.AspectRatio aspectRatio) {
+            if (!hasColour(aspectRatio)) throw new IllegalStateException("No hash recorded for " + aspectRatio);
+            return hashes[aspectRatio.ordinal()];
+        }
+
+        private boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() &&
+                   lastModified == attributes.lastModifiedTime().toMillis();
+        }
+
+        private void writeTo(DataOutputStream out) throws IOException {
+            out.writeLong(size);
+            out.writeLong(lastModified);
+            out.writeInt(colourMask);
+            for (int i = 0; i < colours.length; i++) {
+                out.writeInt(colours[i]);
+                if ((colourMask & (1 << i)) == 0) continue;
+                for (float component : descriptors[i]) {
+                    out.writeFloat(component);
+                }
+                out.writeLong(hashes[i]);
+            }
+            int width = thumbnail.getWidth(), height = thumbnail.getHeight();
+            out.writeShort(width);
+            out.writeShort(height);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int rgb = thumbnail.getRGB(x, y);
+                    out.writeByte(rgb >> 16);
+                    out.writeByte(rgb >> 8);
+                    out.writeByte(rgb);
+                }
+            }
+        }
+
+        private static Entry readFrom(DataInputStream in) throws IOException {
+            long size = in.readLong();
+            long lastModified = in.readLong();
+            int colourMask = in.readInt();
+            int[] colours = new int[Tile.AspectRatio.values().length];
+            float[][] descriptors = new float[colours.length][];
+            long[] hashes = new long[colours.length];
+            for (int i = 0; i < colours.length; i++) {
+                colours[i] = in.readInt();
+                if ((colourMask & (1 << i)) == 0) continue;
+                descriptors[i] = new float[RegionDescriptor.LENGTH];
+                for (int k = 0; k < RegionDescriptor.LENGTH; k++) {
+                    descriptors[i][k] = in.readFloat();
+                }
+                hashes[i] = in.readLong();
+            }
+            int width = in.readUnsignedShort(), height = in.readUnsignedShort();
+            BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int r = in.readUnsignedByte(), g = in.readUnsignedByte(), b = in.readUnsignedByte();
+                    thumbnail.setRGB(x, y, (r << 16) | (g << 8) | b);
+                }
+            }
+            Entry entry = new Entry(size, lastModified, thumbnail);
+            System.arraycopy(colours, 0, entry.colours, 0, colours.length);
+            System.arraycopy(descriptors, 0, entry.descriptors, 0, descriptors.length);
+            System.arraycopy(hashes, 0, entry.hashes, 0, hashes.length);
+            entry.colourMask = colourMask;
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A k-d tree over the average RGB colours of a set of tiles.
+ *
+ * <p>The tree is stored implicitly: the points are sorted so that the median
+ * of every index range {@code [lo, hi)} sits at {@code (lo + hi) >>> 1}, and the
+ * two halves form the subtrees. Tiles can be removed as they are consumed;
+ * removed points stay in place and are skipped using per-subtree live counts.
+ *
+ * <p>Queries do not modify the tree, thus they may run concurrently as long as
+ * no tiles are being removed at the same time.
+ */
+final class TileColourIndex {
+    private static final int DIMENSIONS = 3;
+
+    private final Tile[] tiles;
+    // channel values laid out as [r0, g0, b0, r1, g1, b1, ...] by tree position
+    private final int[] points;
+    // live points in the subtree whose median is at the given position
+    private final int[] liveCounts;
+    private final boolean[] removed;
+    private final Map<Tile, Integer> positions;
+
+    TileColourIndex(Collection<Tile> tiles) {
+        this.tiles = tiles.toArray(new Tile[0]);
+        this.points = new int[this.tiles.length * DIMENSIONS];
+        for (int i = 0; i < this.tiles.length; i++) {
+            int rgb = this.tiles[i].getRgb();
+            points[i * DIMENSIONS]     = (rgb >> 16) & 0xFF;
+            points[i * DIMENSIONS + 1] = (rgb >> 8) & 0xFF;
+            points[i * DIMENSIONS + 2] = rgb & 0xFF;
+        }
+        this.liveCounts = new int[this.tiles.length];
+        this.removed = new boolean[this.tiles.length];
+        build(0, this.tiles.length, 0);
+
+        this.positions = new HashMap<>(this.tiles.length * 2);
+        for (int i = 0; i < this.tiles.length; i++) {
+            positions.put(this.tiles[i], i);
+        }
+    }
+
+    int size() {
+        return tiles.length == 0 ? 0 : liveCounts[tiles.length >>> 1];
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * The number of tiles the index was built from, including removed ones.
+     * Tree positions range from zero up to (excluding) this value.
+     */
+    int capacity() {
+        return tiles.length;
+    }
+
+    Tile tileAt(int position) {
+        return tiles[position];
+    }
+
+    /**
+     * Removes the given tile from the index, so it will no longer be returned
+     * by any query. Returns {@code false} if the tile is unknown or has already
+     * been removed.
+     */
+    boolean remove(Tile tile) {
+        Integer position = positions.get(tile);
+        if (position == null || removed[position]) return false;
+        removed[position] = true;
+
+        int lo = 0, hi = tiles.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            liveCounts[mid]--;
+            if (mid == position) break;
+            if (position < mid) hi = mid;
+            else lo = mid + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the live tile closest to {@code rgb}, or {@code null} if the index
+     * is empty.
+     */
+    Tile nearest(int rgb) {
+        NearestSearch search = new NearestSearch(rgb);
+        search.descend(0, tiles.length, 0);
+        return search.best < 0 ? null : tiles[search.best];
+    }
+
+    /**
+     * Returns the live tiles in ascending order of their (squared) distance to
+     * {@code rgb}. The tiles are found lazily: requesting only the first few
+     * candidates costs roughly as much as a single {@link #nearest(int)} call.
+     */
+    Cursor nearestFirst(int rgb) {
+        return new Cursor(rgb);
+    }
+
+    static int squaredDistance(int rgb, int r, int g, int b) {
+        int dR = ((rgb >> 16) & 0xFF) - r;
+        int dG = ((rgb >> 8) & 0xFF) - g;
+        int dB = (rgb & 0xFF) - b;
+        return dR * dR + dG * dG + dB * dB;
+    }
+
+    //--------------------------------------------------------------------------
+    // construction
+
+    private void build(int lo, int hi, int depth) {
+        if (lo >= hi) return;
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, depth % DIMENSIONS);
+        liveCounts[mid] = hi - lo;
+        build(lo, mid, depth + 1);
+        build(mid + 1, hi, depth + 1);
+    }
+
+    // Hoare's quickselect, leaving the k-th smallest point (along the axis) at k
+    private void select(int lo, int hi, int k, int axis) {
+        while (lo < hi) {
+            int pivot = points[((lo + hi) >>> 1) * DIMENSIONS + axis];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (points[i * DIMENSIONS + axis] < pivot) i++;
+                while (points[j * DIMENSIONS + axis] > pivot) j--;
+                if (i <= j) swap(i++, j--);
+            }
+            if (k <= j) hi = j;
+            else if (k >= i) lo = i;
+            else return;
+        }
+    }
+
+    private void swap(int i, int j) {
+        Tile tile = tiles[i];
+        tiles[i] = tiles[j];
+        tiles[j] = tile;
+        for (int d = 0; d < DIMENSIONS; d++) {
+            int p = points[i * DIMENSIONS + d];
+            points[i * DIMENSIONS + d] = points[j * DIMENSIONS + d];
+            points[j * DIMENSIONS + d] = p;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // queries
+
+    /**
+     * The squared RGB distance between {@code rgb} and the tile at the given
+     * tree position.
+     */
+    int distanceTo(int rgb, int position) {
+        return squaredDistance(
+                rgb,
+                points[position * DIMENSIONS],
+                points[position * DIMENSIONS + 1],
+                points[position * DIMENSIONS + 2]
+        );
+    }
+
+    private static int channel(int rgb, int axis) {
+        return (rgb >> (16 - 8 * axis)) & 0xFF;
+    }
+
+    private final class NearestSearch {
+        private final int rgb;
+        private int best = -1;
+        private int bestDistance = Integer.MAX_VALUE;
+
+        private NearestSearch(int rgb) {
+            this.rgb = rgb;
+        }
+
+        private void descend(int lo, int hi, int depth) {
+            if (lo >= hi) return;
+            int mid = (lo + hi) >>> 1;
+            if (liveCounts[mid] == 0) return;
+
+            if (!removed[mid]) {
+                int distance = distanceTo(rgb, mid);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = mid;
+                }
+            }
+
+            int axis = depth % DIMENSIONS;
+            int delta = channel(rgb, axis) - points[mid * DIMENSIONS + axis];
+            if (delta < 0) {
+                descend(lo, mid, depth + 1);
+                if (delta * delta < bestDistance) descend(mid + 1, hi, depth + 1);
+            } else {
+                descend(mid + 1, hi, depth + 1);
+                if (delta * delta < bestDistance) descend(lo, mid, depth + 1);
+            }
+        }
+    }
+
+    /**
+     * Best-first traversal of the tree. Pending subtrees and points share one
+     * binary min-heap keyed by a lower bound of their distance to the query;
+     * a point is emitted once it reaches the top of the heap.
+     */
+    final class Cursor implements TileMatcher.Candidates {
+        private static final int POINT = -1;
+
+        private final int rgb;
+        // heap entries: lower bound, range start, range end (or POINT), depth
+        private int[] bounds = new int[32];
+        private int[] los = new int[32];
+        private int[] his = new int[32];
+        private int[] depths = new int[32];
+        private int heapSize = 0;
+
+        private int next = -1;
+        private int nextDistance;
+        private int lastDistance = -1;
+
+        private Cursor(int rgb) {
+            this.rgb = rgb;
+            push(0, 0, tiles.length, 0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next < 0) advance();
+            return next >= 0;
+        }
+
+        @Override
+        public Tile next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return tiles[nextPosition()];
+        }
+
+        /**
+         * Like {@link #next()}, but returns the tree position of the tile
+         * (see {@link #tileAt(int)}), or {@code -1} if there are no more tiles.
+         */
+        int nextPosition() {
+            if (!hasNext()) return -1;
+            int position = next;
+            lastDistance = nextDistance;
+            next = -1;
+            return position;
+        }
+
+        /**
+         * The squared RGB distance of the tile last returned by {@link #next()}.
+         */
+        int lastDistance() {
+            return lastDistance;
+        }
+
+        @Override
+        public float cost() {
+            return lastDistance;
+        }
+
+        private void advance() {
+            while (heapSize > 0) {
+                int bound = bounds[0], lo = los[0], hi = his[0], depth = depths[0];
+                pop();
+                if (hi == POINT) {
+                    if (!removed[lo]) {
+                        next = lo;
+                        nextDistance = bound;
+                        return;
+                    }
+                    continue;
+                }
+                if (lo >= hi) continue;
+                int mid = (lo + hi) >>> 1;
+                if (liveCounts[mid] == 0) continue;
+
+                if (!removed[mid]) push(distanceTo(rgb, mid), mid, POINT, depth);
+
+                int axis = depth % DIMENSIONS;
+                int delta = channel(rgb, axis) - points[mid * DIMENSIONS + axis];
+                int farBound = Math.max(bound, delta * delta);
+                if (delta < 0) {
+                    push(bound, lo, mid, depth + 1);
+                    push(farBound, mid + 1, hi, depth + 1);
+                } else {
+                    push(bound, mid + 1, hi, depth + 1);
+                    push(farBound, lo, mid, depth + 1);
+                }
+            }
+        }
+
+        private void push(int bound, int lo, int hi, int depth) {
+            if (heapSize == bounds.length) grow();
+            int i = heapSize++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (bounds[parent] <= bound) break;
+                move(parent, i);
+                i = parent;
+            }
+            set(i, bound, lo, hi, depth);
+        }
+
+        private void pop() {
+            int last = --heapSize;
+            if (last == 0) return;
+            int bound = bounds[last], lo = los[last], hi = his[last], depth = depths[last];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= last) break;
+                if (child + 1 < last && bounds[child + 1] < bounds[child]) child++;
+                if (bounds[child] >= bound) break;
+                move(child, i);
+                i = child;
+            }
+            set(i, bound, lo, hi, depth);
+        }
+
+        private void move(int from, int to) {
+            set(to, bounds[from], los[from], his[from], depths[from]);
+        }
+
+        private void set(int i, int bound, int lo, int hi, int depth) {
+            bounds[i] = bound;
+            los[i] = lo;
+            his[i] = hi;
+            depths[i] = depth;
+        }
+
+        private void grow() {
+            int capacity = bounds.length * 2;
+            bounds = Arrays.copyOf(bounds, capacity);
+            los = Arrays.copyOf(los, capacity);
+            his = Arrays.copyOf(his, capacity);
+            depths = Arrays.copyOf(depths, capacity);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A loaded set of tiles of the same aspect ratio, along with everything
+ * matching needs to know about them: a colour index, the tiles' region
+ * descriptors and (once needed) a colour lookup table.
+ *
+ * <p>A library is immutable, and may be used by any number of mosaics, even
+ * ones being built at the same time. Building a mosaic from a library skips
+ * loading and analysing the tiles altogether, so trying different settings or
+ * targets with the same tiles only costs the colour grid and the placement.
+ *
+ * @see MosaicBuilder#buildTileLibrary()
+ * @see MosaicBuilder#withTileLibrary(TileLibrary)
+ */
+public final class TileLibrary {
+    private final Tile.AspectRatio aspectRatio;
+    private final List<Tile> tiles;
+    private final TileColourIndex colourIndex;
+    // indexed by the tiles' positions in the colour index
+    private final DescriptorTable descriptors;
+    // built on first use, as only quantised matching needs it
+    private volatile ColourLookupTable colourLookupTable;
+
+    /**
+     * Creates a library of tiles, which must have been cropped to the given
+     * aspect ratio.
+     */
+    public static TileLibrary of(Collection<Tile> tiles, Tile.AspectRatio aspectRatio) {
+        return new TileLibrary(tiles, aspectRatio);
+    }
+
+    private TileLibrary(Collection<Tile> tiles, Tile.AspectRatio aspectRatio) {
+        this.aspectRatio = aspectRatio;
+        this.tiles = List.copyOf(tiles);
+        this.colourIndex = new TileColourIndex(this.tiles);
+        this.descriptors = new DescriptorTable(colourIndex.capacity());
+        for (int position = 0; position < colourIndex.capacity(); position++) {
+            descriptors.set(position, colourIndex.tileAt(position).getDescriptor());
+        }
+    }
+
+    public Tile.AspectRatio aspectRatio() {
+        return aspectRatio;
+    }
+
+    public int size() {
+        return tiles.size();
+    }
+
+    public boolean isEmpty() {
+        return tiles.isEmpty();
+    }
+
+    public List<Tile> tiles() {
+        return tiles;
+    }
+
+    /**
+     * Returns a library of the tiles of this one, less {@code removed}, plus
+     * {@code added}. The tiles are not loaded or analysed again, only the
+     * index over them is rebuilt; this library is left as it is.
+     */
+    TileLibrary with(Collection<Tile> added, Collection<Tile> removed) {
+        Set<Tile> removedTiles = new HashSet<>(removed);
+        List<Tile> result = new ArrayList<>(tiles.size() + added.size());
+        for (Tile tile : tiles) {
+            if (!removedTiles.contains(tile)) result.add(tile);
+        }
+        result.addAll(added);
+        return new TileLibrary(result, aspectRatio);
+    }
+
+    // shared by every mosaic of the library, so tiles must never be removed
+    TileColourIndex colourIndex() {
+        return colourIndex;
+    }
+
+    DescriptorTable descriptors() {
+        return descriptors;
+    }
+
+    boolean hasColourLookupTable() {
+        return colourLookupTable != null;
+    }
+
+    ColourLookupTable colourLookupTable() {
+        ColourLookupTable table = colourLookupTable;
+        if (table == null) {
+            synchronized (this) {
+                table = colourLookupTable;
+                if (table == null) {
+                    colourLookupTable = table = new ColourLookupTable(colourIndex);
+                }
+            }
+        }
+        return table;
+    }
+}
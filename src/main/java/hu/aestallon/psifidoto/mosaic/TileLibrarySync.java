@@ -0,0 +1,374 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import hu.aestallon.psifidoto.util.io.Directory;
+import hu.aestallon.psifidoto.util.io.ImageFile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a {@link TileLibrary} up to date with the image files of a directory
+ * tree.
+ *
+ * <p>The sync remembers the size and modification time of every file it has
+ * loaded, failed to load or left out as a near duplicate. An update only loads
+ * the files which are new or have changed since, and drops the tiles of
+ * changed and deleted files (evicting their pixels); the library itself is
+ * immutable, so every update yields a new one, which {@link #library()}
+ * returns from then on. Mosaics being built from an earlier library are not
+ * affected.
+ *
+ * <p>Changes are picked up either by {@link #refresh()}, which scans the whole
+ * tree, or, after {@link #watch()}, by a background thread receiving file system
+ * events for the tree, which never scans more than the directories created.
+ *
+ * @see MosaicBuilder#syncTileLibrary(Directory)
+ */
+public final class TileLibrarySync implements Closeable {
+    // events arriving within this long of each other are applied together, so
+    // a file being copied is not loaded halfway through
+    private static final long SETTLE_MILLIS = 500;
+
+    /**
+     * Receives the outcome of updates. Updates made by the watcher are reported
+     * from its thread.
+     */
+    public interface Listener {
+
+        Listener NONE = new Listener() {};
+
+        /**
+         * Called with the new library once an update has changed anything.
+         */
+        default void libraryUpdated(TileLibrary library, int tilesAdded, int tilesRemoved) {}
+
+        /**
+         * Called if the watcher failed to apply changes; they are tried again
+         * on the next change of the same files, or the next
+         * {@link TileLibrarySync#refresh()}.
+         */
+        default void updateFailed(RuntimeException e) {}
+    }
+
+    // how the builder loads tiles for the sync
+    interface Loader {
+        // files that fail to load are left out of the result
+        List<Tile> load(Collection<ImageFile> files);
+
+        // returns the tiles which are not near duplicates of kept tiles or of
+        // tiles before them, evicting the rest
+        List<Tile> dropNearDuplicates(Collection<Tile> kept, List<Tile> tiles);
+
+        void evict(Collection<Tile> tiles);
+    }
+
+    // tile is null if the file failed to load; a duplicate tile was loaded, but
+    // left out of the library as a near duplicate
+    private record Loaded(Tile tile, boolean duplicate, long size, long lastModified) {
+
+        Tile libraryTile() {
+            return duplicate ? null : tile;
+        }
+    }
+
+    static TileLibrarySync start(Directory root, Tile.AspectRatio aspectRatio, Loader loader) {
+        TileLibrarySync sync = new TileLibrarySync(root.toPath(), aspectRatio, loader);
+        sync.refresh();
+        return sync;
+    }
+
+    private final Path root;
+    private final Loader loader;
+    private final Map<Path, Loaded> loaded;
+    private volatile TileLibrary library;
+    private volatile Listener listener;
+
+    private WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories;
+
+    private TileLibrarySync(Path root, Tile.AspectRatio aspectRatio, Loader loader) {
+        this.root = root;
+        this.loader = loader;
+        this.loaded = new HashMap<>();
+        this.library = TileLibrary.of(List.of(), aspectRatio);
+        this.listener = Listener.NONE;
+        this.watchedDirectories = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the library as of the last update.
+     */
+    public TileLibrary library() {
+        return library;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Scans the whole tree and applies the differences found: loads new and
+     * changed files, and drops deleted ones. Returns the updated library.
+     *
+     * @throws UncheckedIOException if the tree cannot be scanned
+     */
+    public synchronized TileLibrary refresh() {
+        Set<Path> present = new HashSet<>();
+        List<ImageFile> stale = new ArrayList<>();
+        for (ImageFile imageFile : Directory.of(root).imageFilesRecursively()) {
+            present.add(imageFile.toPath());
+            if (isStale(imageFile.toPath())) stale.add(imageFile);
+        }
+        List<Path> deleted = new ArrayList<>();
+        for (Path path : loaded.keySet()) {
+            if (!present.contains(path)) deleted.add(path);
+        }
+        return update(stale, deleted);
+    }
+
+    /**
+     * Starts watching the tree for changes on a background thread, which
+     * applies them as they come. Does nothing if already watching.
+     *
+     * @throws UncheckedIOException if the watch cannot be set up
+     */
+    public synchronized void watch() {
+        if (watchService != null) return;
+        try {
+            watchService = root.getFileSystem().newWatchService();
+            register(root);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to watch " + root, e);
+        }
+        // files may have changed before the directories were registered
+        refresh();
+        Thread watcher = new Thread(this::processEvents, "tile-library-sync");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Stops watching the tree. The last library remains available.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+            watchedDirectories.clear();
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // updating
+
+    private boolean isStale(Path path) {
+        Loaded entry = loaded.get(path);
+        if (entry == null) return true;
+        BasicFileAttributes attributes = attributesOf(path);
+        return attributes == null
+                || attributes.size() != entry.size()
+                || attributes.lastModifiedTime().toMillis() != entry.lastModified();
+    }
+
+    // loads the stale files (dropping their old tiles) and drops the deleted ones
+    private TileLibrary update(Collection<ImageFile> stale, Collection<Path> deleted) {
+        if (stale.isEmpty() && deleted.isEmpty()) return library;
+
+        // recorded before loading, so a file changed meanwhile is loaded again
+        // next time
+        Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+        List<ImageFile> toLoad = new ArrayList<>();
+        for (ImageFile imageFile : stale) {
+            BasicFileAttributes fileAttributes = attributesOf(imageFile.toPath());
+            if (fileAttributes == null) continue;
+            attributes.put(imageFile.toPath(), fileAttributes);
+            toLoad.add(imageFile);
+        }
+        Map<Path, Tile> tiles = new HashMap<>();
+        for (Tile tile : loader.load(toLoad)) {
+            tiles.put(tile.getSource().toPath(), tile);
+        }
+
+        // the state is only changed once loading has succeeded
+        List<Tile> removed = new ArrayList<>();
+        for (Path path : deleted) {
+            forget(path, removed);
+        }
+        for (ImageFile imageFile : stale) {
+            forget(imageFile.toPath(), removed);
+        }
+
+        // tiles left out as duplicates get another chance once tiles are
+        // removed, as they may have been duplicates of those
+        List<Tile> candidates = new ArrayList<>();
+        if (!removed.isEmpty()) {
+            for (Loaded entry : loaded.values()) {
+                if (entry.duplicate()) candidates.add(entry.tile());
+            }
+        }
+        for (ImageFile imageFile : toLoad) {
+            Tile tile = tiles.get(imageFile.toPath());
+            if (tile != null) candidates.add(tile);
+        }
+        List<Tile> kept = new ArrayList<>(library.tiles());
+        kept.removeAll(new HashSet<>(removed));
+        List<Tile> added = loader.dropNearDuplicates(kept, candidates);
+        Set<Tile> addedSet = new HashSet<>(added);
+
+        for (Map.Entry<Path, Loaded> e : loaded.entrySet()) {
+            Loaded entry = e.getValue();
+            if (entry.duplicate() && addedSet.contains(entry.tile())) {
+                e.setValue(new Loaded(entry.tile(), false, entry.size(), entry.lastModified()));
+            }
+        }
+        for (ImageFile imageFile : toLoad) {
+            // a file that failed to load is recorded all the same, so it is
+            // only tried again once it changes
+            Tile tile = tiles.get(imageFile.toPath());
+            BasicFileAttributes fileAttributes = attributes.get(imageFile.toPath());
+            loaded.put(
+                    imageFile.toPath(),
+                    new Loaded(
+                            tile,
+                            tile != null && !addedSet.contains(tile),
+                            fileAttributes.size(),
+                            fileAttributes.lastModifiedTime().toMillis()
+                    )
+            );
+        }
+
+        loader.evict(removed);
+        if (added.isEmpty() && removed.isEmpty()) return library;
+        TileLibrary updated = library.with(added, removed);
+        library = updated;
+        listener.libraryUpdated(updated, added.size(), removed.size());
+        return updated;
+    }
+
+    private void forget(Path path, List<Tile> removed) {
+        Loaded entry = loaded.remove(path);
+        if (entry != null && entry.libraryTile() != null) removed.add(entry.libraryTile());
+    }
+
+    // returns null if the file no longer exists
+    private static BasicFileAttributes attributesOf(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // watching
+
+    // registers the directory and all of its subdirectories
+    private void register(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                watchedDirectories.put(
+                        dir.register(
+                                watchService,
+                                StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_MODIFY,
+                                StandardWatchEventKinds.ENTRY_DELETE
+                        ),
+                        dir
+                );
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void processEvents() {
+        WatchService service;
+        synchronized (this) {
+            service = watchService;
+        }
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Set<Path> changed = new HashSet<>();
+                boolean overflow = false;
+                while (key != null) {
+                    Path directory = watchedDirectories.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else if (directory != null) {
+                            changed.add(directory.resolve((Path) event.context()));
+                        }
+                    }
+                    if (!key.reset()) watchedDirectories.remove(key);
+                    key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                try {
+                    if (overflow) {
+                        refresh();
+                    } else {
+                        apply(changed);
+                    }
+                } catch (RuntimeException e) {
+                    listener.updateFailed(e);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed, stop watching
+        }
+    }
+
+    // applies the changes reported for the given paths
+    private synchronized void apply(Set<Path> changed) {
+        if (watchService == null) return;
+        Set<ImageFile> stale = new HashSet<>();
+        Set<Path> deleted = new HashSet<>();
+        for (Path path : changed) {
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                // a new (or moved in) directory, whose files may predate its
+                // registration
+                try {
+                    register(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to watch " + path, e);
+                }
+                for (ImageFile imageFile : Directory.of(path).imageFilesRecursively()) {
+                    if (isStale(imageFile.toPath())) stale.add(imageFile);
+                }
+            } else if (Files.exists(path)) {
+                if (ImageFile.isValidPath(path) && isStale(path)) stale.add(ImageFile.of(path));
+            } else {
+                // a deleted file, or a deleted directory and everything in it
+                for (Path loadedPath : loaded.keySet()) {
+                    if (loadedPath.startsWith(path)) deleted.add(loadedPath);
+                }
+            }
+        }
+        update(stale, deleted);
+    }
+}
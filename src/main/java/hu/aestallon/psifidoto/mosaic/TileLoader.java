@@ -0,0 +1,240 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import hu.aestallon.psifidoto.util.io.ImageFile;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+/**
+ * Runs tile loading tasks on a fixed number of threads, while keeping the
+ * memory taken up by decoded images within a budget.
+ *
+ * <p>Tasks decode their images through {@link #decode(ImageFile)}. Before an
+ * image is decoded, its header is read to estimate the size of the decoded
+ * raster, and that many bytes are reserved from the budget until the task
+ * finishes. Once the budget is exhausted, workers block until earlier tasks
+ * release their share, and once enough tasks are queued, submission blocks
+ * too, so arbitrarily large libraries can be loaded at disk/CPU speed.
+ */
+final class TileLoader {
+    private static final int BYTES_PER_PERMIT = 1024;
+    private static final int QUEUED_TASKS_PER_THREAD = 4;
+
+    private final int concurrency;
+    private final int memoryPermits;
+    private final Semaphore memory;
+    private final ThreadLocal<int[]> reservedPermits = ThreadLocal.withInitial(() -> new int[1]);
+
+    TileLoader(int concurrency, long memoryBudget) {
+        if (concurrency < 1) throw new IllegalArgumentException("Concurrency must be positive!");
+        if (memoryBudget < 1) throw new IllegalArgumentException("Memory budget must be positive!");
+        this.concurrency = concurrency;
+        this.memoryPermits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, memoryBudget / BYTES_PER_PERMIT));
+        this.memory = new Semaphore(memoryPermits, true);
+    }
+
+    /**
+     * Applies the task to every image file in parallel and returns the results
+     * in no particular order. The first failing task's exception is rethrown.
+     */
+    <T> List<T> load(Collection<ImageFile> imageFiles, Function<ImageFile, T> task) {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, new LoaderThreadFactory());
+        Semaphore queue = new Semaphore(concurrency * QUEUED_TASKS_PER_THREAD);
+        List<Future<T>> futures = new ArrayList<>(imageFiles.size());
+        try {
+            for (ImageFile imageFile : imageFiles) {
+                queue.acquire();
+                futures.add(executor.submit(() -> {
+                    try {
+                        return task.apply(imageFile);
+                    } finally {
+                        releaseReservedMemory();
+                        queue.release();
+                    }
+                }));
+            }
+            List<T> results = new ArrayList<>(futures.size());
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading tiles!", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            if (e.getCause() instanceof Error error) throw error;
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Decodes the image file, first reserving enough of the memory budget to
+     * hold its raster. Meant to be called from tasks passed to
+     * {@link #load(Collection, Function)}; the reservation lasts until the
+     * calling task completes.
+     */
+    BufferedImage decode(ImageFile imageFile) {
+        return read(imageFile, null, 1, 1, false, this::reserveMemory);
+    }
+
+    /**
+     * Decodes the image file subsampled, like {@link #decode(ImageFile)}.
+     *
+     * @see #read(ImageFile, Tile.AspectRatio, int, int, boolean, LongConsumer)
+     */
+    BufferedImage decode(ImageFile imageFile,
+                         Tile.AspectRatio aspectRatio,
+                         int minWidth, int minHeight,
+                         boolean cropToAspectRatio) {
+        return read(imageFile, aspectRatio, minWidth, minHeight, cropToAspectRatio, this::reserveMemory);
+    }
+
+    /**
+     * Decodes the image file, skipping source pixels where possible: every
+     * n<sup>th</sup> row and column is read, with n being the largest factor
+     * that still leaves the aspect ratio crop region at least
+     * {@code minWidth} x {@code minHeight} pixels. If requested, only the crop
+     * region itself is decoded. Passing {@code null} as the aspect ratio
+     * decodes the image in full.
+     *
+     * <p>{@code reservation} is told the size of the decoded raster (in bytes)
+     * before decoding begins.
+     */
+    static BufferedImage read(ImageFile imageFile,
+                              Tile.AspectRatio aspectRatio,
+                              int minWidth, int minHeight,
+                              boolean cropToAspectRatio,
+                              LongConsumer reservation) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(imageFile.toPath().toFile())) {
+            ImageReader reader = readerFor(in, imageFile);
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0), height = reader.getHeight(0);
+                ImageReadParam param = reader.getDefaultReadParam();
+
+                int subsampling = 1;
+                Rectangle region = new Rectangle(0, 0, width, height);
+                if (aspectRatio != null) {
+                    Rectangle crop = Tile.cropRegion(width, height, aspectRatio);
+                    subsampling = Math.max(1, Math.min(crop.width / minWidth, crop.height / minHeight));
+                    if (cropToAspectRatio) region = crop;
+                }
+                if (region.width != width || region.height != height) {
+                    param.setSourceRegion(region);
+                }
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+
+                long decodedWidth = (region.width + subsampling - 1) / subsampling;
+                long decodedHeight = (region.height + subsampling - 1) / subsampling;
+                reservation.accept(decodedWidth * decodedHeight * Integer.BYTES);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to decode " + imageFile.toPath(), e);
+        }
+    }
+
+    /**
+     * Decodes the whole image file, reading only every n<sup>th</sup> row and
+     * column for a {@code subsampling} of n.
+     */
+    static BufferedImage read(ImageFile imageFile, int subsampling) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(imageFile.toPath().toFile())) {
+            ImageReader reader = readerFor(in, imageFile);
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to decode " + imageFile.toPath(), e);
+        }
+    }
+
+    /**
+     * Returns the width and height of the image file, reading only its header.
+     */
+    static Dimension sizeOf(ImageFile imageFile) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(imageFile.toPath().toFile())) {
+            ImageReader reader = readerFor(in, imageFile);
+            try {
+                reader.setInput(in, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + imageFile.toPath(), e);
+        }
+    }
+
+    static ImageReader readerFor(ImageInputStream in, ImageFile imageFile) {
+        if (in == null) throw new IllegalArgumentException("Cannot open " + imageFile.toPath());
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            throw new IllegalArgumentException("No image reader available for " + imageFile.toPath());
+        }
+        return readers.next();
+    }
+
+    private void reserveMemory(long bytes) {
+        // an image larger than the whole budget still gets loaded, on its own
+        int permits = (int) Math.min(memoryPermits, Math.max(1, bytes / BYTES_PER_PERMIT));
+        memory.acquireUninterruptibly(permits);
+        reservedPermits.get()[0] += permits;
+    }
+
+    private void releaseReservedMemory() {
+        int[] reserved = reservedPermits.get();
+        if (reserved[0] > 0) {
+            memory.release(reserved[0]);
+            reserved[0] = 0;
+        }
+    }
+
+    private static final class LoaderThreadFactory implements ThreadFactory {
+        private static final AtomicInteger poolCounter = new AtomicInteger();
+
+        private final int pool = poolCounter.incrementAndGet();
+        private final AtomicInteger threadCounter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "tile-loader-" + pool + "-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
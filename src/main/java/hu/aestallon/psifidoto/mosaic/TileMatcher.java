@@ -0,0 +1,29 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.util.Iterator;
+
+/**
+ * Ranks the tiles of a mosaic against the cells of its grid.
+ *
+ * <p>Implementations must allow querying candidates from multiple threads at
+ * the same time.
+ */
+interface TileMatcher {
+
+    /**
+     * Returns the tiles in order of how well they match the cell at
+     * {@code (x, y)}, best first. The iterator is computed lazily, so taking
+     * only the first few candidates is cheap.
+     */
+    Candidates candidates(int x, int y);
+
+    interface Candidates extends Iterator<Tile> {
+
+        /**
+         * The cost of placing the tile last returned by {@link #next()} on the
+         * cell; lower is better. Costs are only comparable between candidates
+         * of the same matcher.
+         */
+        float cost();
+    }
+}
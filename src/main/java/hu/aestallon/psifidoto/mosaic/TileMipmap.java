@@ -0,0 +1,197 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * A chain of ever smaller copies of a tile's image, each half the size of the
+ * previous one (rounded up) and box-filtered from it, down to a single pixel.
+ * Pixels are packed {@code 0xRRGGBB} ints.
+ *
+ * <p>A mipmap is immutable once built, so it can be shared between threads.
+ * Resizing the tile to any size starts from the smallest level still at least
+ * that large, leaving only a final step of less than half for filtering.
+ */
+final class TileMipmap {
+    private static final int[] RGB_MASKS = {0xFF0000, 0xFF00, 0xFF};
+
+    private final int[][] levels;
+    private final int[] widths;
+    private final int[] heights;
+
+    TileMipmap(int[] pixels, int width, int height) {
+        int count = levelCountOf(width, height);
+        this.levels = new int[count][];
+        this.widths = new int[count];
+        this.heights = new int[count];
+        levels[0] = pixels;
+        widths[0] = width;
+        heights[0] = height;
+        for (int level = 1; level < count; level++) {
+            widths[level] = half(widths[level - 1]);
+            heights[level] = half(heights[level - 1]);
+            levels[level] = downsample(levels[level - 1], widths[level - 1], heights[level - 1]);
+        }
+    }
+
+    private TileMipmap(int[][] levels, int[] widths, int[] heights) {
+        this.levels = levels;
+        this.widths = widths;
+        this.heights = heights;
+    }
+
+    /**
+     * The number of levels of the mipmap of an image of the given size.
+     */
+    static int levelCountOf(int width, int height) {
+        int count = 1;
+        for (int w = width, h = height; w > 1 || h > 1; w = half(w), h = half(h)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Builds the mipmap of the image. The pixels of a {@code TYPE_INT_RGB}
+     * image are used as they are, so the image must not be modified afterwards.
+     */
+    static TileMipmap of(BufferedImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+        WritableRaster raster = image.getRaster();
+        if (image.getType() == BufferedImage.TYPE_INT_RGB
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0
+                && ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == width
+                && raster.getDataBuffer().getOffset() == 0
+                && raster.getDataBuffer().getSize() == width * height) {
+            return new TileMipmap(((DataBufferInt) raster.getDataBuffer()).getData(), width, height);
+        }
+        int[] pixels = new int[width * height];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            ImageUtils.readRow(image, 0, y, width, row);
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = row[x] & 0xFFFFFF;
+            }
+        }
+        return new TileMipmap(pixels, width, height);
+    }
+
+    /**
+     * Returns a copy of this mipmap without the levels finer than the given
+     * one, which may no longer be read, resized or drawn. The remaining levels
+     * are shared.
+     */
+    TileMipmap withoutLevelsBelow(int level) {
+        int[][] kept = levels.clone();
+        Arrays.fill(kept, 0, level, null);
+        return new TileMipmap(kept, widths, heights);
+    }
+
+    /**
+     * The number of levels, the last of which is a single pixel.
+     */
+    int levelCount() {
+        return levels.length;
+    }
+
+    int width(int level) {
+        return widths[level];
+    }
+
+    int height(int level) {
+        return heights[level];
+    }
+
+    /**
+     * Returns the pixel at {@code (x, y)} of the given level, with coordinates
+     * clamped to the level's bounds.
+     */
+    int pixel(int level, int x, int y) {
+        x = Math.max(0, Math.min(widths[level] - 1, x));
+        y = Math.max(0, Math.min(heights[level] - 1, y));
+        return levels[level][y * widths[level] + x];
+    }
+
+    /**
+     * The average colour of the whole tile.
+     */
+    int average() {
+        return levels[levels.length - 1][0];
+    }
+
+    /**
+     * Returns the full size image, backed by the pixels of the first level.
+     */
+    BufferedImage image() {
+        return imageOf(0);
+    }
+
+    /**
+     * Returns the pixels of the tile resized to {@code width} x {@code height},
+     * row by row, in a new array.
+     */
+    int[] resize(int width, int height) {
+        int level = 0;
+        while (level + 1 < levels.length && widths[level + 1] >= width && heights[level + 1] >= height) {
+            level++;
+        }
+        if (widths[level] == width && heights[level] == height) {
+            return levels[level].clone();
+        }
+        BufferedImage resized = ImageUtils.resize(imageOf(level), width, height);
+        return ((DataBufferInt) resized.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * The memory taken up by the pixels of all levels.
+     */
+    long byteSize() {
+        long size = 0;
+        for (int[] level : levels) {
+            if (level != null) size += (long) level.length * Integer.BYTES;
+        }
+        return size;
+    }
+
+    private BufferedImage imageOf(int level) {
+        WritableRaster raster = Raster.createPackedRaster(
+                new DataBufferInt(levels[level], levels[level].length),
+                widths[level], heights[level], widths[level],
+                RGB_MASKS, null
+        );
+        return new BufferedImage(
+                new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]),
+                raster, false, null
+        );
+    }
+
+    private static int half(int length) {
+        return (length + 1) >> 1;
+    }
+
+    // averages 2x2 blocks; at odd edges, the last row or column is averaged
+    // with itself
+    private static int[] downsample(int[] pixels, int width, int height) {
+        int w = half(width), h = half(height);
+        int[] result = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            int y0 = 2 * y, y1 = Math.min(height - 1, y0 + 1);
+            for (int x = 0; x < w; x++) {
+                int x0 = 2 * x, x1 = Math.min(width - 1, x0 + 1);
+                int a = pixels[y0 * width + x0], b = pixels[y0 * width + x1];
+                int c = pixels[y1 * width + x0], d = pixels[y1 * width + x1];
+                int r = ((a >> 16 & 0xFF) + (b >> 16 & 0xFF) + (c >> 16 & 0xFF) + (d >> 16 & 0xFF) + 2) >> 2;
+                int g = ((a >> 8 & 0xFF) + (b >> 8 & 0xFF) + (c >> 8 & 0xFF) + (d >> 8 & 0xFF) + 2) >> 2;
+                int bl = ((a & 0xFF) + (b & 0xFF) + (c & 0xFF) + (d & 0xFF) + 2) >> 2;
+                result[y * w + x] = r << 16 | g << 8 | bl;
+            }
+        }
+        return result;
+    }
+}
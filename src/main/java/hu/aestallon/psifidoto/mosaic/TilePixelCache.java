@@ -0,0 +1,76 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the decoded images of file-backed tiles in memory, as
+ * {@linkplain TileMipmap mipmaps}, up to a number of bytes. Once the capacity
+ * is exceeded, the least recently used images are dropped, and decoded again
+ * from their files when next needed.
+ *
+ * <p>This way the heap taken up by a library does not grow with the number of
+ * its tiles: placement only ever needs their colours and descriptors, and
+ * export only the images of the tiles actually placed. The cache is safe to use
+ * from multiple threads.
+ */
+final class TilePixelCache {
+    private final long capacity;
+    private final LinkedHashMap<Tile, TileMipmap> images;
+    private long size;
+
+    TilePixelCache(long capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("Capacity must not be negative!");
+        this.capacity = capacity;
+        this.images = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the cached mipmap of the tile, or decodes it with {@code decoder}
+     * and caches the result.
+     */
+    TileMipmap get(Tile tile, Supplier<TileMipmap> decoder) {
+        synchronized (this) {
+            TileMipmap image = images.get(tile);
+            if (image != null) return image;
+        }
+        // decoding happens outside the lock; two threads may decode the same
+        // tile at once, in which case the first result is kept
+        TileMipmap image = decoder.get();
+        synchronized (this) {
+            TileMipmap previous = images.putIfAbsent(tile, image);
+            if (previous != null) return previous;
+            size += sizeOf(image);
+            evict();
+        }
+        return image;
+    }
+
+    /**
+     * Drops the cached image of the tile, e.g. once its file has been deleted.
+     */
+    synchronized void remove(Tile tile) {
+        TileMipmap image = images.remove(tile);
+        if (image != null) size -= sizeOf(image);
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    // the most recently used image is kept even if it alone exceeds the capacity,
+    // as it is about to be drawn
+    private void evict() {
+        Iterator<Map.Entry<Tile, TileMipmap>> eldest = images.entrySet().iterator();
+        while (size > capacity && images.size() > 1) {
+            size -= sizeOf(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    private static long sizeOf(TileMipmap image) {
+        return image.byteSize();
+    }
+}
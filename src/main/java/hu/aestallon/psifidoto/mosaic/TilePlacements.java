@@ -0,0 +1,53 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records where each tile has been placed on a grid, so that checking whether
+ * a tile would be repeated too close to itself only costs as much as the number
+ * of times that tile has already been placed.
+ */
+final class TilePlacements {
+    private final Map<Tile, Positions> positions = new HashMap<>();
+
+    void add(Tile tile, int x, int y) {
+        positions.computeIfAbsent(tile, t -> new Positions()).add(x, y);
+    }
+
+    /**
+     * Returns whether the tile has been placed anywhere whose euclidean
+     * distance from {@code (x, y)}, rounded to the nearest integer, is less
+     * than {@code minDistance}.
+     */
+    boolean isWithin(Tile tile, int x, int y, int minDistance) {
+        if (minDistance <= 0) return false;
+        Positions p = positions.get(tile);
+        if (p == null) return false;
+        // round(sqrt(d2)) < m  <=>  sqrt(d2) < m - 0.5  <=>  4 * d2 < (2m - 1)^2
+        long limit = (2L * minDistance - 1) * (2L * minDistance - 1);
+        for (int i = 0; i < p.size; i++) {
+            long dX = x - p.xs[i];
+            long dY = y - p.ys[i];
+            if (4 * (dX * dX + dY * dY) < limit) return true;
+        }
+        return false;
+    }
+
+    private static final class Positions {
+        private int[] xs = new int[2];
+        private int[] ys = new int[2];
+        private int size;
+
+        private void add(int x, int y) {
+            if (size == xs.length) {
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+            }
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+        }
+    }
+}
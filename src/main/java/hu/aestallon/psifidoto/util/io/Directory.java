@@ -1,11 +1,18 @@
 package hu.aestallon.psifidoto.util.io;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.stream.Collectors;
 
 public final class Directory {
@@ -27,6 +34,11 @@ public final class Directory {
         return dirPath;
     }
 
+    /**
+     * Returns the image files directly in this directory.
+     *
+     * @throws UncheckedIOException if the directory cannot be listed
+     */
     public Set<ImageFile> imageFiles() {
         try (var paths = Files.list(dirPath)) {
             return paths
@@ -34,8 +46,48 @@ public final class Directory {
                     .map(ImageFile::of)
                     .collect(Collectors.toSet());
         } catch (IOException e) {
-            e.printStackTrace();
-            return Collections.emptySet();
+            throw new UncheckedIOException("Failed to list " + dirPath, e);
+        }
+    }
+
+    /**
+     * Returns the image files in this directory and all of its subdirectories.
+     * Subdirectories are listed in parallel, on the common fork-join pool.
+     * Symbolic links to directories are not followed.
+     *
+     * @throws UncheckedIOException if any of the directories cannot be listed
+     */
+    public Set<ImageFile> imageFilesRecursively() {
+        Set<ImageFile> imageFiles = ConcurrentHashMap.newKeySet();
+        ForkJoinPool.commonPool().invoke(new Scan(dirPath, imageFiles));
+        return imageFiles;
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Scan extends RecursiveAction {
+        private final Path directory;
+        private final Set<ImageFile> imageFiles;
+
+        private Scan(Path directory, Set<ImageFile> imageFiles) {
+            this.directory = directory;
+            this.imageFiles = imageFiles;
+        }
+
+        @Override
+        protected void compute() {
+            List<Scan> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory)) {
+                for (Path path : paths) {
+                    if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        subdirectories.add(new Scan(path, imageFiles));
+                    } else if (ImageFile.isValidPath(path)) {
+                        imageFiles.add(ImageFile.of(path));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to list " + directory, e);
+            }
+            invokeAll(subdirectories);
         }
     }
 }
@@ -0,0 +1,157 @@
+package hu.aestallon.psifidoto.util.io;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an 8-bit RGB PNG image scanline by scanline, so that images of any
+ * size can be encoded while only holding a few rows of them in memory.
+ *
+ * <p>Rows are passed in as packed {@code 0xRRGGBB} ints, top to bottom, and
+ * must add up to exactly the declared height by the time the writer is closed.
+ */
+public final class PngStreamWriter implements Closeable {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final byte FILTER_SUB = 1;
+
+    public static PngStreamWriter create(Path path, int width, int height) throws IOException {
+        return new PngStreamWriter(Files.newOutputStream(path), width, height);
+    }
+
+    private final DataOutputStream out;
+    private final Deflater deflater;
+    private final DeflaterOutputStream idat;
+    private final int width;
+    private final int height;
+    private final byte[] scanline;
+    private int rowsWritten;
+
+    public PngStreamWriter(OutputStream out, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("Illegal image dimensions!");
+        this.out = new DataOutputStream(new BufferedOutputStream(out, CHUNK_SIZE));
+        this.width = width;
+        this.height = height;
+        this.scanline = new byte[1 + 3 * width];
+
+        this.out.write(SIGNATURE);
+        writeHeader();
+
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        this.idat = new DeflaterOutputStream(new ChunkStream("IDAT"), deflater, CHUNK_SIZE);
+    }
+
+    /**
+     * Appends {@code rowCount} rows of {@code pixels}, starting at
+     * {@code offset}, with {@code width} pixels per row.
+     */
+    public void writeRows(int[] pixels, int offset, int rowCount) throws IOException {
+        if (rowsWritten + rowCount > height) {
+            throw new IllegalStateException("Cannot write more rows than the image height!");
+        }
+        for (int row = 0; row < rowCount; row++) {
+            // the Sub filter stores each byte relative to the same channel of
+            // the pixel to its left, which compresses smooth areas far better
+            scanline[0] = FILTER_SUB;
+            int previous = 0;
+            int rowStart = offset + row * width;
+            for (int x = 0; x < width; x++) {
+                int rgb = pixels[rowStart + x];
+                scanline[1 + 3 * x]     = (byte) ((rgb >> 16) - (previous >> 16));
+                scanline[1 + 3 * x + 1] = (byte) ((rgb >> 8) - (previous >> 8));
+                scanline[1 + 3 * x + 2] = (byte) (rgb - previous);
+                previous = rgb;
+            }
+            idat.write(scanline);
+        }
+        rowsWritten += rowCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            idat.close();
+            if (rowsWritten != height) {
+                throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows were written!");
+            }
+            writeChunk("IEND", new byte[0], 0);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        byte[] header = {
+                (byte) (width >>> 24), (byte) (width >>> 16), (byte) (width >>> 8), (byte) width,
+                (byte) (height >>> 24), (byte) (height >>> 16), (byte) (height >>> 8), (byte) height,
+                8, // bit depth
+                2, // colour type: truecolour
+                0, // compression: deflate
+                0, // filter method: adaptive
+                0  // interlace: none
+        };
+        writeChunk("IHDR", header, header.length);
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    // splits the compressed stream into chunks of the given type
+    private final class ChunkStream extends OutputStream {
+        private final String type;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int size;
+
+        private ChunkStream(String type) {
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == buffer.length) flushChunk();
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == buffer.length) flushChunk();
+                int n = Math.min(len, buffer.length - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushChunk();
+        }
+
+        private void flushChunk() throws IOException {
+            if (size == 0) return;
+            writeChunk(type, buffer, size);
+            size = 0;
+        }
+    }
+}
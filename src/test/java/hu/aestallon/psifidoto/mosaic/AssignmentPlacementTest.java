@@ -0,0 +1,148 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AssignmentPlacementTest {
+    private static final Duration BUDGET = Duration.ofSeconds(10);
+
+    @Test
+    void comesCloseToTheCheapestAssignmentOfASingleBlock() {
+        // a 3x2 grid with a repetition distance of 3 is one block: no tile
+        // may be placed twice, so the result is an assignment of cells to tiles
+        int width = 3, height = 2;
+        for (int seed = 0; seed < 300; seed++) {
+            Random random = new Random(seed);
+            int tileCount = width * height + random.nextInt(5);
+            List<Tile> tiles = tiles(tileCount);
+            float[][] costs = randomCosts(random, width * height, tileCount);
+
+            Tile[] placed = new AssignmentPlacement(new CostMatrix(tiles, costs, width), width, height, tiles, 3)
+                    .place(BUDGET);
+
+            assertEquals(width * height, new HashSet<>(Arrays.asList(placed)).size(), "a tile is repeated");
+            // the auction stops at an epsilon of a quarter of the largest cost
+            // per cell, so it is at most that far off in total
+            float optimum = cheapestAssignment(costs, 0, new boolean[tileCount]);
+            float cost = costOf(placed, tiles, costs);
+            assertTrue(cost >= optimum);
+            assertTrue(cost <= optimum + maxOf(costs) / 4f, "seed " + seed + ": " + cost + " > " + optimum);
+        }
+    }
+
+    @Test
+    void placesTheBestMatchOnEveryCellWithoutARepetitionDistance() {
+        int width = 5, height = 4;
+        Random random = new Random(17);
+        List<Tile> tiles = tiles(6);
+        float[][] costs = randomCosts(random, width * height, tiles.size());
+
+        Tile[] placed = new AssignmentPlacement(new CostMatrix(tiles, costs, width), width, height, tiles, 0)
+                .place(BUDGET);
+
+        for (int cell = 0; cell < placed.length; cell++) {
+            float best = Float.MAX_VALUE;
+            for (float cost : costs[cell]) {
+                best = Math.min(best, cost);
+            }
+            assertEquals(best, costs[cell][tiles.indexOf(placed[cell])], "cell " + cell);
+        }
+    }
+
+    // exhaustive search over the injective assignments of the remaining cells
+    private static float cheapestAssignment(float[][] costs, int cell, boolean[] used) {
+        if (cell == costs.length) return 0f;
+        float best = Float.MAX_VALUE;
+        for (int tile = 0; tile < used.length; tile++) {
+            if (used[tile]) continue;
+            used[tile] = true;
+            best = Math.min(best, costs[cell][tile] + cheapestAssignment(costs, cell + 1, used));
+            used[tile] = false;
+        }
+        return best;
+    }
+
+    private static float maxOf(float[][] costs) {
+        float max = 0f;
+        for (float[] row : costs) {
+            for (float cost : row) {
+                max = Math.max(max, cost);
+            }
+        }
+        return max;
+    }
+
+    private static float costOf(Tile[] placed, List<Tile> tiles, float[][] costs) {
+        float total = 0f;
+        for (int cell = 0; cell < placed.length; cell++) {
+            total += costs[cell][tiles.indexOf(placed[cell])];
+        }
+        return total;
+    }
+
+    private static float[][] randomCosts(Random random, int cellCount, int tileCount) {
+        float[][] costs = new float[cellCount][tileCount];
+        for (float[] row : costs) {
+            for (int tile = 0; tile < tileCount; tile++) {
+                row[tile] = random.nextInt(1000);
+            }
+        }
+        return costs;
+    }
+
+    private static List<Tile> tiles(int count) {
+        List<Tile> tiles = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tiles.add(TileColourIndexTest.tileOf(i));
+        }
+        return tiles;
+    }
+
+    /** Ranks the tiles of each cell by a fixed table of costs. */
+    private static final class CostMatrix implements TileMatcher {
+        private final List<Tile> tiles;
+        private final float[][] costs;
+        private final int width;
+
+        CostMatrix(List<Tile> tiles, float[][] costs, int width) {
+            this.tiles = tiles;
+            this.costs = costs;
+            this.width = width;
+        }
+
+        @Override
+        public Candidates candidates(int x, int y) {
+            float[] cellCosts = costs[y * width + x];
+            Integer[] order = new Integer[tiles.size()];
+            Arrays.setAll(order, i -> i);
+            Arrays.sort(order, (a, b) -> Float.compare(cellCosts[a], cellCosts[b]));
+            return new Candidates() {
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < order.length;
+                }
+
+                @Override
+                public Tile next() {
+                    return tiles.get(order[next++]);
+                }
+
+                @Override
+                public float cost() {
+                    return cellCosts[order[next - 1]];
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeepZoomExporterTest {
+    private static final int TILE_WIDTH = 40;
+    private static final int TILE_HEIGHT = 30;
+    private static final int COLUMNS = 9;
+    private static final int ROWS = 5;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void writesEveryLevelHalvingDownToASinglePixel() throws IOException {
+        Grid<Tile> tileGrid = randomGrid(new Random(1));
+        DeepZoomExporter exporter = exporterOf(tileGrid);
+        AtomicInteger written = new AtomicInteger();
+        exporter.export(directory, "mosaic", ForkJoinPool.commonPool(), written::addAndGet);
+
+        int width = COLUMNS * TILE_WIDTH, height = ROWS * TILE_HEIGHT;
+        String descriptor = Files.readString(directory.resolve("mosaic.dzi"));
+        assertTrue(descriptor.contains("Width=\"" + width + "\" Height=\"" + height + "\""), descriptor);
+        assertTrue(descriptor.contains("TileSize=\"" + DeepZoomExporter.WEB_TILE_SIZE + "\""), descriptor);
+
+        // 360 pixels wide: levels 0 to 9, as 2^9 is the first power of two not below that
+        Path files = directory.resolve("mosaic_files");
+        assertEquals(10, fileCount(files));
+        int webTiles = 0;
+        for (int level = 9, w = width, h = height; level >= 0; level--, w = (w + 1) / 2, h = (h + 1) / 2) {
+            Path levelDirectory = files.resolve(Integer.toString(level));
+            int columns = ceilDiv(w, DeepZoomExporter.WEB_TILE_SIZE);
+            int rows = ceilDiv(h, DeepZoomExporter.WEB_TILE_SIZE);
+            assertEquals(columns * rows, fileCount(levelDirectory), "level " + level);
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    BufferedImage webTile = ImageIO.read(levelDirectory.resolve(column + "_" + row + ".png").toFile());
+                    int x0 = column * DeepZoomExporter.WEB_TILE_SIZE, y0 = row * DeepZoomExporter.WEB_TILE_SIZE;
+                    assertEquals(Math.min(DeepZoomExporter.WEB_TILE_SIZE, w - x0), webTile.getWidth());
+                    assertEquals(Math.min(DeepZoomExporter.WEB_TILE_SIZE, h - y0), webTile.getHeight());
+                }
+            }
+            webTiles += columns * rows;
+        }
+        assertEquals(1, ImageIO.read(files.resolve("0").resolve("0_0.png").toFile()).getWidth());
+        assertEquals(webTiles, exporter.webTileCount());
+        assertEquals(webTiles, written.get());
+    }
+
+    @Test
+    void theFinestLevelIsTheRenderedMosaic() throws IOException {
+        Grid<Tile> tileGrid = randomGrid(new Random(2));
+        exporterOf(tileGrid).export(directory, "mosaic", ForkJoinPool.commonPool(), tiles -> {});
+        BufferedImage rendered = new MosaicRenderer(tileGrid, TILE_WIDTH, TILE_HEIGHT)
+                .render(ForkJoinPool.commonPool(), rows -> {});
+
+        Path finest = directory.resolve("mosaic_files").resolve("9");
+        for (int column = 0; column < 2; column++) {
+            BufferedImage webTile = ImageIO.read(finest.resolve(column + "_0.png").toFile());
+            int x0 = column * DeepZoomExporter.WEB_TILE_SIZE;
+            for (int y = 0; y < webTile.getHeight(); y++) {
+                for (int x = 0; x < webTile.getWidth(); x++) {
+                    assertEquals(rendered.getRGB(x0 + x, y), webTile.getRGB(x, y), "(" + (x0 + x) + ", " + y + ")");
+                }
+            }
+        }
+    }
+
+    private static DeepZoomExporter exporterOf(Grid<Tile> tileGrid) {
+        return new DeepZoomExporter(new MosaicRenderer(tileGrid, TILE_WIDTH, TILE_HEIGHT), tileGrid, TILE_WIDTH, TILE_HEIGHT);
+    }
+
+    // a few tiles, each placed several times
+    private static Grid<Tile> randomGrid(Random random) {
+        List<Tile> tiles = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            tiles.add(new Tile(TileCacheTest.randomImage(random, 64, 48), Tile.AspectRatio.FULL_LANDSCAPE));
+        }
+        Grid<Tile> grid = new Grid<>(COLUMNS, ROWS);
+        for (int y = 0; y < ROWS; y++) {
+            for (int x = 0; x < COLUMNS; x++) {
+                grid.add(x, y, tiles.get(random.nextInt(tiles.size())));
+            }
+        }
+        return grid;
+    }
+
+    private static long fileCount(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+}
@@ -0,0 +1,130 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GridTest {
+
+    @Test
+    void neighboursComeInCoordinateOrder() {
+        Grid<String> grid = filledGrid(4, 3);
+        for (int y = 0; y < grid.height(); y++) {
+            for (int x = 0; x < grid.width(); x++) {
+                List<Grid.Coordinate<String>> neighbours = grid.neighboursOf(x, y);
+                assertEquals(expectedNeighbours(x, y, 4, 3), coordinatesOf(neighbours), "(" + x + ", " + y + ")");
+                for (int i = 1; i < neighbours.size(); i++) {
+                    assertTrue(neighbours.get(i - 1).compareTo(neighbours.get(i)) < 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    void forEachNeighbourVisitsWhatNeighboursOfReturns() {
+        Grid<String> grid = filledGrid(3, 3);
+        List<Grid.Coordinate<String>> visited = new ArrayList<>();
+        grid.forEachNeighbour(1, 1, visited::add);
+        assertEquals(grid.neighboursOf(1, 1), visited);
+        assertEquals(8, visited.size());
+    }
+
+    @Test
+    void neighboursSkipEmptyCells() {
+        Grid<String> grid = new Grid<>(3, 3);
+        grid.add(0, 0, "a");
+        grid.add(2, 1, "b");
+        List<Grid.Coordinate<String>> neighbours = grid.neighboursOf(1, 1);
+        assertEquals(2, neighbours.size());
+        assertEquals("a", neighbours.get(0).unwrap());
+        assertEquals("b", neighbours.get(1).unwrap());
+        assertTrue(grid.neighboursOf(0, 2).isEmpty());
+    }
+
+    @Test
+    void addsEveryCellOnlyOnce() {
+        Grid<String> grid = new Grid<>(2, 2);
+        assertFalse(grid.contains(1, 0));
+        assertTrue(grid.add(1, 0, "a"));
+        assertFalse(grid.add(1, 0, "b"));
+        assertTrue(grid.contains(1, 0));
+        assertEquals("a", grid.get(1, 0).unwrap());
+        assertFalse(grid.contains(2, 0));
+        assertThrows(IllegalArgumentException.class, () -> grid.add(2, 0, "c"));
+        assertThrows(IllegalArgumentException.class, () -> grid.get(0, 0));
+    }
+
+    @Test
+    void intGridNeighbourIndicesAgreeWithGrid() {
+        int width = 5, height = 4;
+        Grid<String> grid = filledGrid(width, height);
+        IntGrid intGrid = new IntGrid(width, height);
+        int[] out = new int[8];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int count = intGrid.neighbourIndices(x, y, out);
+                List<int[]> coordinates = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    coordinates.add(new int[] {intGrid.xOf(out[i]), intGrid.yOf(out[i])});
+                }
+                assertEquals(coordinatesOf(grid.neighboursOf(x, y)), toStrings(coordinates));
+            }
+        }
+    }
+
+    @Test
+    void intGridIsRowMajor() {
+        IntGrid grid = new IntGrid(3, 2);
+        grid.set(2, 1, 0x102030);
+        assertEquals(5, grid.indexOf(2, 1));
+        assertEquals(0x102030, grid.get(5));
+        assertEquals(0x102030, grid.get(2, 1));
+        assertEquals(2, grid.xOf(5));
+        assertEquals(1, grid.yOf(5));
+        assertThrows(IllegalArgumentException.class, () -> grid.indexOf(3, 0));
+    }
+
+    private static Grid<String> filledGrid(int width, int height) {
+        Grid<String> grid = new Grid<>(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                grid.add(x, y, x + "," + y);
+            }
+        }
+        return grid;
+    }
+
+    // the order the grid's former sorted set of coordinates gave: by x, then y
+    private static List<String> expectedNeighbours(int x, int y, int width, int height) {
+        List<String> expected = new ArrayList<>();
+        for (int nx = x - 1; nx <= x + 1; nx++) {
+            for (int ny = y - 1; ny <= y + 1; ny++) {
+                if (nx < 0 || nx >= width || ny < 0 || ny >= height || (nx == x && ny == y)) continue;
+                expected.add(nx + "," + ny);
+            }
+        }
+        return expected;
+    }
+
+    private static List<String> coordinatesOf(List<Grid.Coordinate<String>> coordinates) {
+        List<String> strings = new ArrayList<>(coordinates.size());
+        for (Grid.Coordinate<String> c : coordinates) {
+            strings.add(c.x() + "," + c.y());
+        }
+        return strings;
+    }
+
+    private static List<String> toStrings(List<int[]> coordinates) {
+        List<String> strings = new ArrayList<>(coordinates.size());
+        for (int[] c : coordinates) {
+            strings.add(c[0] + "," + c[1]);
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,93 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashIndexTest {
+    private static final int[] DISTANCES = {0, 1, 3, 5, 8, 10, 12, 16};
+
+    @Test
+    void findsAHashWithinTheDistanceExactlyWhenBruteForceDoes() {
+        Random random = new Random(42);
+        long[] hashes = hashesWithNearDuplicates(random, 2000);
+        HashIndex<Integer> index = indexOf(hashes);
+
+        for (int query = 0; query < 300; query++) {
+            long hash = query % 2 == 0 ? random.nextLong() : flipBits(hashes[random.nextInt(hashes.length)], random);
+            for (int maxDistance : DISTANCES) {
+                assertMatchesBruteForce(index, hashes, hash, maxDistance, i -> true);
+            }
+        }
+    }
+
+    @Test
+    void onlyReturnsValuesAcceptedByTheFilter() {
+        Random random = new Random(7);
+        long[] hashes = hashesWithNearDuplicates(random, 2000);
+        HashIndex<Integer> index = indexOf(hashes);
+
+        for (int query = 0; query < 300; query++) {
+            long hash = flipBits(hashes[random.nextInt(hashes.length)], random);
+            for (int maxDistance : DISTANCES) {
+                assertMatchesBruteForce(index, hashes, hash, maxDistance, i -> i % 3 == 0);
+            }
+        }
+    }
+
+    @Test
+    void findsNothingWithANegativeDistanceOrInAnEmptyIndex() {
+        HashIndex<Integer> index = indexOf(new long[] {0L, -1L});
+        assertNull(index.findWithin(0L, -1, i -> true));
+        assertNull(new HashIndex<Integer>().findWithin(0L, 64, i -> true));
+        assertEquals(0, index.findWithin(0L, 0, i -> true));
+    }
+
+    private static void assertMatchesBruteForce(HashIndex<Integer> index, long[] hashes,
+                                                long hash, int maxDistance, IntPredicate filter) {
+        boolean expected = false;
+        for (int i = 0; i < hashes.length && !expected; i++) {
+            expected = PerceptualHash.distance(hash, hashes[i]) <= maxDistance && filter.test(i);
+        }
+        Integer found = index.findWithin(hash, maxDistance, filter::test);
+        if (!expected) {
+            assertNull(found, "nothing is within " + maxDistance);
+            return;
+        }
+        assertTrue(found != null, "a hash within " + maxDistance + " is missed");
+        assertTrue(filter.test(found));
+        assertTrue(PerceptualHash.distance(hash, hashes[found]) <= maxDistance);
+    }
+
+    // random hashes, a quarter of them a few bits off an earlier one
+    private static long[] hashesWithNearDuplicates(Random random, int count) {
+        long[] hashes = new long[count];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = i > 0 && random.nextInt(4) == 0
+                    ? flipBits(hashes[random.nextInt(i)], random)
+                    : random.nextLong();
+        }
+        return hashes;
+    }
+
+    private static long flipBits(long hash, Random random) {
+        for (int flips = random.nextInt(14); flips > 0; flips--) {
+            hash ^= 1L << random.nextInt(Long.SIZE);
+        }
+        return hash;
+    }
+
+    private static HashIndex<Integer> indexOf(long[] hashes) {
+        HashIndex<Integer> index = new HashIndex<>();
+        for (int i = 0; i < hashes.length; i++) {
+            index.add(hashes[i], i);
+        }
+        assertEquals(hashes.length, index.size());
+        return index;
+    }
+}
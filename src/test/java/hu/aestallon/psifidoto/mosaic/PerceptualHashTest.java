@@ -0,0 +1,117 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PerceptualHashTest {
+
+    @Test
+    void countsTheDifferingBits() {
+        assertEquals(0, PerceptualHash.distance(0x1234L, 0x1234L));
+        assertEquals(64, PerceptualHash.distance(0L, -1L));
+        assertEquals(3, PerceptualHash.distance(0b1011L, 0b0110L));
+        assertEquals(PerceptualHash.distance(42L, -7L), PerceptualHash.distance(-7L, 42L));
+    }
+
+    @Test
+    void hashesAFlatImageToZero() {
+        BufferedImage flat = new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 20; y++) {
+            for (int x = 0; x < 30; x++) {
+                flat.setRGB(x, y, 0x7F3A10);
+            }
+        }
+        assertEquals(0L, PerceptualHash.of(flat));
+    }
+
+    @Test
+    void nearDuplicatesAreClose() throws IOException {
+        Random random = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            BufferedImage image = smoothImage(random, 240, 180);
+            long hash = PerceptualHash.of(image);
+            String name = "image " + i;
+            assertTrue(PerceptualHash.distance(hash, PerceptualHash.of(ImageUtils.resize(image, 100, 75))) <= 4, name);
+            assertTrue(PerceptualHash.distance(hash, PerceptualHash.of(brightened(image, 30))) <= 4, name);
+            assertTrue(PerceptualHash.distance(hash, PerceptualHash.of(reencoded(image))) <= 4, name);
+        }
+    }
+
+    @Test
+    void differentImagesAreFar() {
+        Random random = new Random(2);
+        long[] hashes = new long[30];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = PerceptualHash.of(smoothImage(random, 120, 90));
+        }
+        long total = 0;
+        int pairs = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            for (int j = i + 1; j < hashes.length; j++) {
+                int distance = PerceptualHash.distance(hashes[i], hashes[j]);
+                assertTrue(distance > 10, "images " + i + " and " + j);
+                total += distance;
+                pairs++;
+            }
+        }
+        // unrelated hashes differ in about half of their bits
+        assertTrue(Math.abs(total / (double) pairs - 32) < 6);
+    }
+
+    // a sum of a few random waves in every channel, so the image has structure
+    // that survives scaling down
+    private static BufferedImage smoothImage(Random random, int width, int height) {
+        double[][] waves = new double[9][4];
+        for (double[] wave : waves) {
+            wave[0] = random.nextDouble() * 8 - 4;
+            wave[1] = random.nextDouble() * 8 - 4;
+            wave[2] = random.nextDouble() * 2 * Math.PI;
+            wave[3] = 20 + random.nextDouble() * 40;
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb = 0;
+                for (int channel = 0; channel < 3; channel++) {
+                    double value = 128;
+                    for (int w = 0; w < 3; w++) {
+                        double[] wave = waves[channel * 3 + w];
+                        value += wave[3] * Math.sin(wave[0] * x / width * Math.PI + wave[1] * y / height * Math.PI + wave[2]);
+                    }
+                    rgb = rgb << 8 | (int) Math.max(0, Math.min(255, value));
+                }
+                image.setRGB(x, y, rgb);
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage brightened(BufferedImage image, int amount) {
+        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int rgb = image.getRGB(x, y), brightened = 0;
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    brightened = brightened << 8 | Math.min(255, (rgb >> shift & 0xFF) + amount);
+                }
+                result.setRGB(x, y, brightened);
+            }
+        }
+        return result;
+    }
+
+    private static BufferedImage reencoded(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+}
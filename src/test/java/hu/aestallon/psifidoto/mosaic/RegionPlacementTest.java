@@ -0,0 +1,125 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RegionPlacementTest {
+    private static final int WIDTH = 53;
+    private static final int HEIGHT = 41;
+
+    @Test
+    void placesTheSameTilesForTheSameSeed() {
+        RandomRanking matcher = new RandomRanking(new Random(1), 40);
+        for (long seed = 0; seed < 5; seed++) {
+            Tile[] first = new RegionPlacement(matcher, WIDTH, HEIGHT, 3, seed).place(cells -> {});
+            for (int run = 0; run < 3; run++) {
+                assertArrayEquals(first, new RegionPlacement(matcher, WIDTH, HEIGHT, 3, seed).place(cells -> {}));
+            }
+        }
+    }
+
+    @Test
+    void laysRegionBordersByTheSeed() {
+        RandomRanking matcher = new RandomRanking(new Random(2), 40);
+        Tile[] first = new RegionPlacement(matcher, WIDTH, HEIGHT, 3, 0).place(cells -> {});
+        boolean differs = false;
+        for (long seed = 1; seed < 10 && !differs; seed++) {
+            differs = !Arrays.equals(first, new RegionPlacement(matcher, WIDTH, HEIGHT, 3, seed).place(cells -> {}));
+        }
+        assertTrue(differs, "every seed placed the same tiles");
+    }
+
+    @Test
+    void repeatsNoTileTooCloseEvenAcrossRegionBorders() {
+        // a disc of radius 2.5 holds 21 cells, so 40 tiles always leave one
+        // that is not repeated too close
+        for (int minDistance : new int[] {2, 3, 20}) {
+            RandomRanking matcher = new RandomRanking(new Random(minDistance), minDistance == 20 ? 1300 : 40);
+            for (long seed = 0; seed < 3; seed++) {
+                AtomicInteger cellsPlaced = new AtomicInteger();
+                RegionPlacement placement = new RegionPlacement(matcher, WIDTH, HEIGHT, minDistance, seed);
+                Tile[] placed = placement.place(cellsPlaced::addAndGet);
+
+                assertEquals(WIDTH * HEIGHT, cellsPlaced.get());
+                TilePlacements placements = new TilePlacements();
+                for (int cell = 0; cell < placed.length; cell++) {
+                    int x = cell % WIDTH, y = cell / WIDTH;
+                    assertNotNull(placed[cell]);
+                    assertFalse(
+                            placements.isWithin(placed[cell], x, y, minDistance),
+                            "(" + x + ", " + y + ") repeats a tile closer than " + minDistance
+                    );
+                    placements.add(placed[cell], x, y);
+                }
+            }
+        }
+    }
+
+    @Test
+    void placesTheBestMatchWithoutARepetitionDistance() {
+        RandomRanking matcher = new RandomRanking(new Random(4), 10);
+        RegionPlacement placement = new RegionPlacement(matcher, WIDTH, HEIGHT, 0, 0);
+        Tile[] placed = placement.place(cells -> {});
+        assertEquals(0, placement.rejectedCandidates());
+        for (int cell = 0; cell < placed.length; cell++) {
+            assertEquals(matcher.candidates(cell % WIDTH, cell / WIDTH).next(), placed[cell]);
+        }
+    }
+
+    /** Ranks the tiles of every cell in a fixed random order. */
+    private static final class RandomRanking implements TileMatcher {
+        private final List<Tile> tiles;
+        private final int[][] orders;
+
+        RandomRanking(Random random, int tileCount) {
+            this.tiles = new ArrayList<>(tileCount);
+            for (int i = 0; i < tileCount; i++) {
+                tiles.add(TileColourIndexTest.tileOf(i));
+            }
+            this.orders = new int[WIDTH * HEIGHT][];
+            for (int cell = 0; cell < orders.length; cell++) {
+                List<Integer> order = new ArrayList<>(tileCount);
+                for (int i = 0; i < tileCount; i++) {
+                    order.add(i);
+                }
+                Collections.shuffle(order, random);
+                orders[cell] = order.stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+
+        @Override
+        public Candidates candidates(int x, int y) {
+            int[] order = orders[y * WIDTH + x];
+            return new Candidates() {
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < order.length;
+                }
+
+                @Override
+                public Tile next() {
+                    return tiles.get(order[next++]);
+                }
+
+                @Override
+                public float cost() {
+                    return next - 1;
+                }
+            };
+        }
+    }
+}
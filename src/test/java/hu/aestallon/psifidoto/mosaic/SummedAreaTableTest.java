@@ -0,0 +1,52 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SummedAreaTableTest {
+
+    @Test
+    void agreesWithScanningTheRegion() {
+        Random random = new Random(7);
+        BufferedImage image = TileCacheTest.randomImage(random, 57, 43);
+        SummedAreaTable table = SummedAreaTable.ofSquaredChannels(image);
+        assertEquals(57, table.width());
+        assertEquals(43, table.height());
+
+        for (int i = 0; i < 2000; i++) {
+            int x0 = random.nextInt(57), x1 = x0 + 1 + random.nextInt(57 - x0);
+            int y0 = random.nextInt(43), y1 = y0 + 1 + random.nextInt(43 - y0);
+            assertEquals(
+                    ImageUtils.calculateAverageColourOfRegion(image, x0, x1, y0, y1).getRGB() & 0xFFFFFF,
+                    table.averageColourOfRegion(x0, x1, y0, y1),
+                    "[" + x0 + ", " + x1 + ") x [" + y0 + ", " + y1 + ")"
+            );
+        }
+        assertEquals(
+                ImageUtils.calculateAverageColourSquared(image).getRGB() & 0xFFFFFF,
+                table.averageColourOfRegion(0, 57, 0, 43)
+        );
+    }
+
+    @Test
+    void readsImagesOfOtherTypes() {
+        BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_3BYTE_BGR);
+        image.setRGB(1, 2, 0xFF8040);
+        SummedAreaTable table = SummedAreaTable.ofSquaredChannels(image);
+        assertEquals(0xFF8040, table.averageColourOfRegion(1, 2, 2, 3));
+        assertEquals(0, table.averageColourOfRegion(0, 4, 0, 2));
+    }
+
+    @Test
+    void rejectsEmptyAndOutOfBoundsRegions() {
+        SummedAreaTable table = SummedAreaTable.ofSquaredChannels(new BufferedImage(4, 3, BufferedImage.TYPE_INT_RGB));
+        assertThrows(IllegalArgumentException.class, () -> table.averageColourOfRegion(2, 2, 0, 3));
+        assertThrows(IllegalArgumentException.class, () -> table.averageColourOfRegion(0, 5, 0, 3));
+        assertThrows(IllegalArgumentException.class, () -> table.averageColourOfRegion(0, 4, -1, 3));
+    }
+}
@@ -0,0 +1,155 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import hu.aestallon.psifidoto.util.io.ImageFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TileAtlasTest {
+    private static final int TILE_WIDTH = 8;
+    private static final int TILE_HEIGHT = 6;
+    private static final Tile.AspectRatio ASPECT_RATIO = Tile.AspectRatio.FULL_LANDSCAPE;
+
+    @TempDir
+    Path directory;
+
+    private final Random random = new Random(1);
+    private final TilePixelCache pixels = new TilePixelCache(16);
+
+    @Test
+    void writesOnlyNewAndChangedFiles() throws IOException {
+        List<Tile> tiles = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            tiles.add(write("tile" + i + ".png"));
+        }
+        assertEquals(5, open().update(tiles));
+
+        TileAtlas reopened = open();
+        List<Tile> reloaded = reload(tiles);
+        assertEquals(0, reopened.update(reloaded));
+        assertPixels(reopened, reloaded);
+
+        Tile changed = write("tile2.png");
+        reloaded.set(2, changed);
+        TileAtlas updated = open();
+        assertEquals(1, updated.update(reloaded));
+        assertPixels(updated, reloaded);
+    }
+
+    @Test
+    void reusesTheSlotsOfDeletedFiles() throws IOException {
+        List<Tile> tiles = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            tiles.add(write("tile" + i + ".png"));
+        }
+        open().update(tiles);
+        long atlasSize = Files.size(atlasFile());
+
+        Files.delete(tiles.get(1).getSource().toPath());
+        tiles.set(1, write("new.png"));
+        TileAtlas atlas = open();
+        assertEquals(1, atlas.update(tiles));
+        assertEquals(atlasSize, Files.size(atlasFile()));
+        assertPixels(atlas, tiles);
+    }
+
+    @Test
+    void isNoLongerCurrentOnceAnotherInstanceWritesToTheFile() throws IOException {
+        List<Tile> tiles = List.of(write("a.png"), write("b.png"));
+        TileAtlas first = open();
+        first.update(tiles);
+        assertTrue(first.isCurrent());
+
+        TileAtlas unchanged = open();
+        assertEquals(0, unchanged.update(reload(tiles)));
+        assertTrue(first.isCurrent());
+
+        TileAtlas changed = open();
+        assertEquals(1, changed.update(List.of(tiles.get(0), write("b.png"))));
+        assertFalse(first.isCurrent());
+        assertTrue(changed.isCurrent());
+    }
+
+    @Test
+    void leavesOutTilesWithoutASourceFile() throws IOException {
+        Tile inMemory = new Tile(randomImage(), ASPECT_RATIO);
+        Tile fromFile = write("a.png");
+        TileAtlas atlas = open();
+        assertEquals(1, atlas.update(List.of(inMemory, fromFile)));
+        assertFalse(atlas.contains(inMemory));
+        assertTrue(atlas.contains(fromFile));
+    }
+
+    @Test
+    void rejectsAnAtlasOfAnotherTileSize() throws IOException {
+        open().update(List.of(write("a.png")));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> TileAtlas.open(atlasFile(), TILE_WIDTH * 2, TILE_HEIGHT * 2, ASPECT_RATIO)
+        );
+    }
+
+    private TileAtlas open() {
+        return TileAtlas.open(atlasFile(), TILE_WIDTH, TILE_HEIGHT, ASPECT_RATIO);
+    }
+
+    private Path atlasFile() {
+        return directory.resolve("atlas.bin");
+    }
+
+    private static void assertPixels(TileAtlas atlas, List<Tile> tiles) {
+        for (Tile tile : tiles) {
+            assertTrue(atlas.contains(tile));
+            int[] copied = new int[TILE_WIDTH * TILE_HEIGHT];
+            for (int line = 0; line < TILE_HEIGHT; line++) {
+                atlas.copyLine(tile, line, copied, line * TILE_WIDTH);
+            }
+            assertArrayEquals(tile.resize(TILE_WIDTH, TILE_HEIGHT), copied, tile.getSource().toPath().toString());
+        }
+    }
+
+    // writes a new random image and returns the tile loaded from it, with a
+    // modification time later than that of any earlier version of the file
+    private Tile write(String name) throws IOException {
+        Path path = directory.resolve(name);
+        FileTime previous = Files.exists(path) ? Files.getLastModifiedTime(path) : null;
+        ImageIO.write(randomImage(), "png", path.toFile());
+        if (previous != null) {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(previous.toMillis() + 2000));
+        }
+        return load(ImageFile.of(path));
+    }
+
+    // the same files, as tiles of a library loaded again
+    private List<Tile> reload(List<Tile> tiles) throws IOException {
+        List<Tile> reloaded = new ArrayList<>(tiles.size());
+        for (Tile tile : tiles) {
+            reloaded.add(load(tile.getSource()));
+        }
+        return reloaded;
+    }
+
+    private Tile load(ImageFile file) throws IOException {
+        BufferedImage cropped = Tile.cropToAspectRatio(ImageIO.read(file.toPath().toFile()), ASPECT_RATIO);
+        return Tile.ofSource(file, cropped, () -> cropped, pixels);
+    }
+
+    private BufferedImage randomImage() {
+        return TileCacheTest.randomImage(random, 40, 30);
+    }
+}
@@ -0,0 +1,130 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import hu.aestallon.psifidoto.util.io.ImageFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TileCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsBackWhatWasSaved() throws IOException {
+        BufferedImage image = randomImage(new Random(1), 80, 60);
+        ImageFile file = write(image, "a.png");
+        Tile tile = new Tile(image, Tile.AspectRatio.FULL_LANDSCAPE);
+
+        TileCache cache = TileCache.open(directory);
+        assertNull(cache.lookup(file));
+        TileCache.Entry entry = cache.update(file, image);
+        assertSame(entry, cache.update(file, image));
+        cache.putTile(entry, Tile.AspectRatio.FULL_LANDSCAPE, tile);
+        cache.save();
+
+        TileCache.Entry read = TileCache.open(directory).lookup(file);
+        assertNotNull(read);
+        assertTrue(read.hasColour(Tile.AspectRatio.FULL_LANDSCAPE));
+        assertFalse(read.hasColour(Tile.AspectRatio.SQUARE));
+        assertEquals(tile.getRgb(), read.colour(Tile.AspectRatio.FULL_LANDSCAPE));
+        assertArrayEquals(tile.getDescriptor(), read.descriptor(Tile.AspectRatio.FULL_LANDSCAPE));
+        assertEquals(tile.getHash(), read.hash(Tile.AspectRatio.FULL_LANDSCAPE));
+
+        BufferedImage thumbnail = entry.thumbnail();
+        assertEquals(TileCache.THUMBNAIL_SIZE, Math.max(thumbnail.getWidth(), thumbnail.getHeight()));
+        assertEquals(thumbnail.getWidth(), read.thumbnail().getWidth());
+        assertEquals(thumbnail.getHeight(), read.thumbnail().getHeight());
+        for (int y = 0; y < thumbnail.getHeight(); y++) {
+            for (int x = 0; x < thumbnail.getWidth(); x++) {
+                assertEquals(thumbnail.getRGB(x, y) & 0xFFFFFF, read.thumbnail().getRGB(x, y) & 0xFFFFFF);
+            }
+        }
+    }
+
+    @Test
+    void forgetsFilesChangedSinceSaved() throws IOException {
+        Random random = new Random(2);
+        BufferedImage image = randomImage(random, 40, 40);
+        ImageFile file = write(image, "a.png");
+        TileCache cache = TileCache.open(directory);
+        cache.update(file, image);
+        cache.save();
+
+        BufferedImage changed = randomImage(random, 40, 40);
+        write(changed, "a.png");
+        FileTime modified = Files.getLastModifiedTime(file.toPath());
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(modified.toMillis() + 2000));
+        TileCache reopened = TileCache.open(directory);
+        assertNull(reopened.lookup(file));
+        assertNotNull(reopened.update(file, changed));
+    }
+
+    @Test
+    void dropsFilesDeletedSinceOnSave() throws IOException {
+        BufferedImage image = randomImage(new Random(3), 40, 40);
+        ImageFile file = write(image, "a.png");
+        FileTime modified = Files.getLastModifiedTime(file.toPath());
+        TileCache cache = TileCache.open(directory);
+        cache.update(file, image);
+        cache.save();
+
+        Path copy = directory.resolve("copy.bin");
+        Files.move(file.toPath(), copy);
+        TileCache.open(directory).save();
+        // the same file, of the same size and time, is no longer known
+        Files.move(copy, file.toPath());
+        Files.setLastModifiedTime(file.toPath(), modified);
+        assertNull(TileCache.open(directory).lookup(file));
+    }
+
+    @Test
+    void treatsACorruptIndexAsEmpty() throws IOException {
+        BufferedImage image = randomImage(new Random(4), 40, 40);
+        ImageFile file = write(image, "a.png");
+        TileCache cache = TileCache.open(directory);
+        cache.update(file, image);
+        cache.save();
+
+        Path index = directory.resolve(TileCache.FILE_NAME);
+        byte[] bytes = Files.readAllBytes(index);
+        Files.write(index, Arrays.copyOf(bytes, bytes.length / 2));
+        TileCache corrupt = TileCache.open(directory);
+        assertNull(corrupt.lookup(file));
+        corrupt.save();
+        // magic, version and an entry count of zero
+        assertEquals(3 * Integer.BYTES, Files.size(index));
+    }
+
+    private ImageFile write(BufferedImage image, String name) throws IOException {
+        Path path = directory.resolve(name);
+        ImageIO.write(image, "png", path.toFile());
+        return ImageFile.of(path);
+    }
+
+    static BufferedImage randomImage(Random random, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt(1 << 24));
+            }
+        }
+        return image;
+    }
+}
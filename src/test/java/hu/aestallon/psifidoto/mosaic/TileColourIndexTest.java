@@ -0,0 +1,147 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TileColourIndexTest {
+
+    @Test
+    void nearestIsAsCloseAsTheClosestTileOfALinearScan() {
+        Random random = new Random(3);
+        List<Tile> tiles = randomTiles(random, 500);
+        TileColourIndex index = new TileColourIndex(tiles);
+        List<Tile> live = new ArrayList<>(tiles);
+
+        for (int round = 0; round < 4; round++) {
+            for (int query = 0; query < 200; query++) {
+                int rgb = random.nextInt(1 << 24);
+                Tile nearest = index.nearest(rgb);
+                assertTrue(live.contains(nearest));
+                assertEquals(linearDistances(live, rgb).get(0), distanceOf(nearest, rgb));
+            }
+            removeRandomly(index, live, random, live.size() / 2);
+        }
+    }
+
+    @Test
+    void cursorReturnsEveryLiveTileInTheOrderOfALinearScan() {
+        Random random = new Random(5);
+        List<Tile> tiles = randomTiles(random, 300);
+        TileColourIndex index = new TileColourIndex(tiles);
+        List<Tile> live = new ArrayList<>(tiles);
+        removeRandomly(index, live, random, 100);
+
+        for (int query = 0; query < 100; query++) {
+            int rgb = random.nextInt(1 << 24);
+            TileColourIndex.Cursor cursor = index.nearestFirst(rgb);
+            Set<Tile> seen = new HashSet<>();
+            List<Integer> distances = new ArrayList<>();
+            while (cursor.hasNext()) {
+                Tile tile = cursor.next();
+                assertTrue(seen.add(tile), "returned twice");
+                assertEquals(distanceOf(tile, rgb), cursor.lastDistance());
+                distances.add(cursor.lastDistance());
+            }
+            assertEquals(new HashSet<>(live), seen);
+            assertEquals(linearDistances(live, rgb), distances);
+        }
+    }
+
+    @Test
+    void cursorTakingOnlyAFewTilesAgreesWithALinearScan() {
+        Random random = new Random(11);
+        List<Tile> tiles = randomTiles(random, 1000);
+        TileColourIndex index = new TileColourIndex(tiles);
+
+        for (int query = 0; query < 200; query++) {
+            int rgb = random.nextInt(1 << 24);
+            List<Integer> expected = linearDistances(tiles, rgb);
+            TileColourIndex.Cursor cursor = index.nearestFirst(rgb);
+            for (int k = 0; k < 5; k++) {
+                cursor.next();
+                assertEquals(expected.get(k), cursor.lastDistance());
+            }
+        }
+    }
+
+    @Test
+    void handlesTilesOfTheSameColour() {
+        List<Tile> tiles = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            tiles.add(tileOf(i % 2 == 0 ? 0x808080 : 0x102030));
+        }
+        TileColourIndex index = new TileColourIndex(tiles);
+        TileColourIndex.Cursor cursor = index.nearestFirst(0x808080);
+        Set<Tile> grey = new HashSet<>();
+        for (int k = 0; k < 10; k++) {
+            grey.add(cursor.next());
+            assertEquals(0, cursor.lastDistance());
+        }
+        assertEquals(10, grey.size());
+        assertTrue(cursor.hasNext());
+    }
+
+    @Test
+    void findsNothingOnceEveryTileIsRemoved() {
+        List<Tile> tiles = randomTiles(new Random(13), 10);
+        TileColourIndex index = new TileColourIndex(tiles);
+        for (Tile tile : tiles) {
+            assertTrue(index.remove(tile));
+            assertFalse(index.remove(tile));
+        }
+        assertTrue(index.isEmpty());
+        assertNull(index.nearest(0));
+        assertFalse(index.nearestFirst(0).hasNext());
+        assertNull(new TileColourIndex(List.of()).nearest(0));
+    }
+
+    private static void removeRandomly(TileColourIndex index, List<Tile> live, Random random, int count) {
+        Collections.shuffle(live, random);
+        for (Tile tile : List.copyOf(live.subList(0, count))) {
+            assertTrue(index.remove(tile));
+            live.remove(tile);
+        }
+        assertEquals(live.size(), index.size());
+    }
+
+    private static List<Integer> linearDistances(List<Tile> tiles, int rgb) {
+        List<Integer> distances = new ArrayList<>(tiles.size());
+        for (Tile tile : tiles) {
+            distances.add(distanceOf(tile, rgb));
+        }
+        Collections.sort(distances);
+        return distances;
+    }
+
+    private static int distanceOf(Tile tile, int rgb) {
+        Color colour = tile.getColour();
+        return TileColourIndex.squaredDistance(rgb, colour.getRed(), colour.getGreen(), colour.getBlue());
+    }
+
+    private static List<Tile> randomTiles(Random random, int count) {
+        List<Tile> tiles = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tiles.add(tileOf(random.nextInt(1 << 24)));
+        }
+        return tiles;
+    }
+
+    static Tile tileOf(int rgb) {
+        BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, rgb);
+        return new Tile(image, Tile.AspectRatio.SQUARE);
+    }
+}
@@ -0,0 +1,215 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import hu.aestallon.psifidoto.util.io.Directory;
+import hu.aestallon.psifidoto.util.io.ImageFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TileLibrarySyncTest {
+
+    @TempDir
+    Path directory;
+
+    private final StubLoader loader = new StubLoader();
+    private final List<int[]> updates = new ArrayList<>();
+
+    @Test
+    void loadsOnlyAddedFiles() throws IOException {
+        write("a.png", 0x100000);
+        write("b.png", 0x200000);
+        TileLibrarySync sync = start();
+        assertEquals(2, sync.library().size());
+
+        write("sub/c.png", 0x300000);
+        loader.loaded.clear();
+        TileLibrary library = sync.refresh();
+        assertEquals(3, library.size());
+        assertSame(library, sync.library());
+        assertEquals(List.of("c.png"), loader.loadedNames());
+        assertEquals(List.of(1, 0), update(0));
+    }
+
+    @Test
+    void replacesTheTilesOfChangedFiles() throws IOException {
+        write("a.png", 0x100000);
+        write("b.png", 0x200000);
+        TileLibrarySync sync = start();
+        Tile old = tileOf(sync.library(), "b.png");
+
+        write("b.png", 0x400000);
+        loader.loaded.clear();
+        TileLibrary library = sync.refresh();
+        assertEquals(2, library.size());
+        assertEquals(List.of("b.png"), loader.loadedNames());
+        assertFalse(library.tiles().contains(old));
+        assertEquals(0x400000, tileOf(library, "b.png").getRgb());
+        assertEquals(Set.of(old), loader.evicted);
+        assertEquals(List.of(1, 1), update(0));
+    }
+
+    @Test
+    void dropsTheTilesOfDeletedFiles() throws IOException {
+        write("a.png", 0x100000);
+        write("sub/b.png", 0x200000);
+        write("sub/c.png", 0x300000);
+        TileLibrarySync sync = start();
+        Tile a = tileOf(sync.library(), "a.png");
+
+        Files.delete(directory.resolve("a.png"));
+        TileLibrary library = sync.refresh();
+        assertEquals(2, library.size());
+        assertEquals(Set.of(a), loader.evicted);
+        assertEquals(List.of(0, 1), update(0));
+    }
+
+    @Test
+    void changesNothingWithoutChangedFiles() throws IOException {
+        write("a.png", 0x100000);
+        TileLibrarySync sync = start();
+        TileLibrary library = sync.library();
+        loader.loaded.clear();
+        assertSame(library, sync.refresh());
+        assertTrue(loader.loaded.isEmpty());
+        assertTrue(updates.isEmpty());
+    }
+
+    @Test
+    void triesFailedFilesAgainOnlyOnceChanged() throws IOException {
+        write("a.png", 0x100000);
+        write("broken.png", 0x200000);
+        loader.failing.add("broken.png");
+        TileLibrarySync sync = start();
+        assertEquals(1, sync.library().size());
+
+        loader.loaded.clear();
+        sync.refresh();
+        assertTrue(loader.loaded.isEmpty());
+
+        loader.failing.clear();
+        write("broken.png", 0x200000);
+        assertEquals(2, sync.refresh().size());
+        assertEquals(List.of("broken.png"), loader.loadedNames());
+    }
+
+    @Test
+    void addsANearDuplicateOnceTheTileItDuplicatedIsGone() throws IOException {
+        write("a.png", 0x100000);
+        write("copy.png", 0x100000);
+        TileLibrarySync sync = start();
+        assertEquals(1, sync.library().size());
+        String kept = sync.library().tiles().get(0).getSource().toPath().getFileName().toString();
+        String duplicate = kept.equals("a.png") ? "copy.png" : "a.png";
+
+        Files.delete(directory.resolve(kept));
+        TileLibrary library = sync.refresh();
+        assertEquals(1, library.size());
+        assertEquals(duplicate, library.tiles().get(0).getSource().toPath().getFileName().toString());
+        assertEquals(List.of(1, 1), update(0));
+    }
+
+    private TileLibrarySync start() {
+        TileLibrarySync sync = TileLibrarySync.start(Directory.of(directory), Tile.AspectRatio.SQUARE, loader);
+        sync.setListener(new TileLibrarySync.Listener() {
+            @Override
+            public void libraryUpdated(TileLibrary library, int tilesAdded, int tilesRemoved) {
+                updates.add(new int[] {tilesAdded, tilesRemoved});
+            }
+        });
+        return sync;
+    }
+
+    private List<Integer> update(int index) {
+        assertEquals(index + 1, updates.size());
+        return List.of(updates.get(index)[0], updates.get(index)[1]);
+    }
+
+    private static Tile tileOf(TileLibrary library, String name) {
+        for (Tile tile : library.tiles()) {
+            if (tile.getSource().toPath().getFileName().toString().equals(name)) return tile;
+        }
+        throw new AssertionError("No tile of " + name);
+    }
+
+    // writes a flat image of the colour, modified later than any earlier
+    // version of the file
+    private void write(String name, int rgb) throws IOException {
+        Path path = directory.resolve(name);
+        Files.createDirectories(path.getParent());
+        FileTime previous = Files.exists(path) ? Files.getLastModifiedTime(path) : null;
+        BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                image.setRGB(x, y, rgb);
+            }
+        }
+        ImageIO.write(image, "png", path.toFile());
+        if (previous != null) {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(previous.toMillis() + 2000));
+        }
+    }
+
+    /** Loads tiles in memory; tiles of the same colour are near duplicates. */
+    private static final class StubLoader implements TileLibrarySync.Loader {
+        private final TilePixelCache pixels = new TilePixelCache(0);
+        private final List<ImageFile> loaded = new ArrayList<>();
+        private final Set<String> failing = new HashSet<>();
+        private final Set<Tile> evicted = new HashSet<>();
+
+        @Override
+        public List<Tile> load(Collection<ImageFile> files) {
+            List<Tile> tiles = new ArrayList<>();
+            for (ImageFile file : files) {
+                loaded.add(file);
+                if (failing.contains(file.toPath().getFileName().toString())) continue;
+                BufferedImage image;
+                try {
+                    image = ImageIO.read(file.toPath().toFile());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                tiles.add(Tile.ofSource(file, image, () -> image, pixels));
+            }
+            return tiles;
+        }
+
+        @Override
+        public List<Tile> dropNearDuplicates(Collection<Tile> kept, List<Tile> tiles) {
+            Set<Integer> colours = new HashSet<>();
+            kept.forEach(tile -> colours.add(tile.getRgb()));
+            List<Tile> added = new ArrayList<>();
+            for (Tile tile : tiles) {
+                if (colours.add(tile.getRgb())) added.add(tile);
+            }
+            return added;
+        }
+
+        @Override
+        public void evict(Collection<Tile> tiles) {
+            evicted.addAll(tiles);
+        }
+
+        private List<String> loadedNames() {
+            List<String> names = new ArrayList<>();
+            loaded.forEach(file -> names.add(file.toPath().getFileName().toString()));
+            return names;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import hu.aestallon.psifidoto.util.io.ImageFile;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TileMipmapTest {
+
+    @Test
+    void halvesEveryLevelRoundingUpDownToASinglePixel() {
+        TileMipmap mipmap = new TileMipmap(new int[13 * 5], 13, 5);
+        int[][] sizes = {{13, 5}, {7, 3}, {4, 2}, {2, 1}, {1, 1}};
+        assertEquals(sizes.length, mipmap.levelCount());
+        assertEquals(sizes.length, TileMipmap.levelCountOf(13, 5));
+        for (int level = 0; level < sizes.length; level++) {
+            assertEquals(sizes[level][0], mipmap.width(level));
+            assertEquals(sizes[level][1], mipmap.height(level));
+        }
+        assertEquals(1, TileMipmap.levelCountOf(1, 1));
+        assertEquals(9, TileMipmap.levelCountOf(256, 1));
+    }
+
+    @Test
+    void averagesBlocksOfFourRepeatingOddEdges() {
+        // 3x2: the last column is averaged with itself
+        int[] pixels = {
+                0x000000, 0x040404, 0x100000,
+                0x080808, 0x0C0C0C, 0x300000
+        };
+        TileMipmap mipmap = new TileMipmap(pixels, 3, 2);
+        assertEquals(0x060606, mipmap.pixel(1, 0, 0));
+        assertEquals(0x200000, mipmap.pixel(1, 1, 0));
+        assertEquals(mipmap.pixel(2, 0, 0), mipmap.average());
+        // coordinates are clamped
+        assertEquals(0x300000, mipmap.pixel(0, 5, 5));
+        assertEquals(0x000000, mipmap.pixel(0, -1, -1));
+    }
+
+    @Test
+    void keepsTheAverageOfAFlatImage() {
+        int[] pixels = new int[37 * 23];
+        Arrays.fill(pixels, 0x5A80C3);
+        assertEquals(0x5A80C3, new TileMipmap(pixels, 37, 23).average());
+    }
+
+    @Test
+    void resizesToALevelSizeByCopyingThatLevel() {
+        Random random = new Random(1);
+        BufferedImage image = TileCacheTest.randomImage(random, 16, 12);
+        TileMipmap mipmap = TileMipmap.of(image);
+        int[] level = mipmap.resize(8, 6);
+        assertEquals(8 * 6, level.length);
+        for (int y = 0; y < 6; y++) {
+            for (int x = 0; x < 8; x++) {
+                assertEquals(mipmap.pixel(1, x, y), level[y * 8 + x]);
+            }
+        }
+        // a copy, so the mipmap cannot be changed through it
+        level[0] = ~level[0];
+        assertEquals(mipmap.pixel(1, 0, 0), mipmap.resize(8, 6)[0]);
+        assertEquals(5 * 3, mipmap.resize(5, 3).length);
+        assertEquals(32 * 24, mipmap.resize(32, 24).length);
+    }
+
+    @Test
+    void readsImagesOfOtherTypesLikePackedOnes() {
+        BufferedImage packed = TileCacheTest.randomImage(new Random(2), 9, 7);
+        BufferedImage bgr = new BufferedImage(9, 7, BufferedImage.TYPE_3BYTE_BGR);
+        bgr.getGraphics().drawImage(packed, 0, 0, null);
+        TileMipmap expected = TileMipmap.of(packed), actual = TileMipmap.of(bgr);
+        for (int level = 0; level < expected.levelCount(); level++) {
+            for (int y = 0; y < expected.height(level); y++) {
+                for (int x = 0; x < expected.width(level); x++) {
+                    assertEquals(expected.pixel(level, x, y), actual.pixel(level, x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    void dropsOnlyTheFinerLevels() {
+        TileMipmap mipmap = TileMipmap.of(TileCacheTest.randomImage(new Random(3), 8, 8));
+        TileMipmap trimmed = mipmap.withoutLevelsBelow(2);
+        assertEquals((2 * 2 + 1) * Integer.BYTES, trimmed.byteSize());
+        assertEquals((8 * 8 + 4 * 4 + 2 * 2 + 1) * Integer.BYTES, mipmap.byteSize());
+        assertEquals(mipmap.pixel(2, 1, 1), trimmed.pixel(2, 1, 1));
+        assertEquals(mipmap.average(), trimmed.average());
+        assertArrayEquals(mipmap.resize(2, 2), trimmed.resize(2, 2));
+        assertThrows(NullPointerException.class, () -> trimmed.pixel(1, 0, 0));
+    }
+
+    @Test
+    void buildsTheMipmapOfAFileBackedTileOnItsFirstResize() {
+        BufferedImage image = TileCacheTest.randomImage(new Random(4), 8, 8);
+        TilePixelCache pixels = new TilePixelCache(0);
+        AtomicInteger decodes = new AtomicInteger();
+        Supplier<BufferedImage> decoder = () -> {
+            decodes.incrementAndGet();
+            return image;
+        };
+        Tile tile = Tile.ofSource(ImageFile.of(Path.of("a.png")), image, decoder, pixels);
+        Tile other = Tile.ofSource(ImageFile.of(Path.of("b.png")), image, decoder, pixels);
+        assertEquals(0, decodes.get());
+        assertEquals(0, pixels.size());
+
+        assertArrayEquals(TileMipmap.of(image).resize(4, 4), tile.resize(4, 4));
+        tile.resize(2, 2);
+        assertEquals(1, decodes.get());
+        assertEquals(TileMipmap.of(image).byteSize(), pixels.size());
+        // a cache of no capacity keeps only the mipmap last built
+        other.resize(4, 4);
+        tile.resize(4, 4);
+        assertEquals(3, decodes.get());
+    }
+}
@@ -0,0 +1,55 @@
+package hu.aestallon.psifidoto.mosaic;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TilePlacementsTest {
+
+    @Test
+    void roundsTheDistanceLikeMathRound() {
+        Tile tile = TileColourIndexTest.tileOf(0);
+        TilePlacements placements = new TilePlacements();
+        placements.add(tile, 0, 0);
+        for (int minDistance = 1; minDistance <= 12; minDistance++) {
+            for (int x = -15; x <= 15; x++) {
+                for (int y = -15; y <= 15; y++) {
+                    boolean expected = Math.round(Math.sqrt(x * x + y * y)) < minDistance;
+                    assertEquals(
+                            expected,
+                            placements.isWithin(tile, x, y, minDistance),
+                            "(" + x + ", " + y + ") at " + minDistance
+                    );
+                }
+            }
+        }
+    }
+
+    @Test
+    void roundsDiagonalDistances() {
+        Tile tile = TileColourIndexTest.tileOf(0);
+        TilePlacements placements = new TilePlacements();
+        placements.add(tile, 0, 0);
+        // sqrt(2) = 1.41 rounds to 1, sqrt(5) = 2.24 to 2, sqrt(8) = 2.83 to 3
+        assertTrue(placements.isWithin(tile, 1, 1, 2));
+        assertFalse(placements.isWithin(tile, 2, 1, 2));
+        assertTrue(placements.isWithin(tile, 2, 1, 3));
+        assertFalse(placements.isWithin(tile, 2, 2, 3));
+    }
+
+    @Test
+    void checksEveryPlacementOfTheTileOnly() {
+        Tile tile = TileColourIndexTest.tileOf(0);
+        Tile other = TileColourIndexTest.tileOf(1);
+        TilePlacements placements = new TilePlacements();
+        for (int i = 0; i < 10; i++) {
+            placements.add(tile, 10 * i, 0);
+        }
+        assertTrue(placements.isWithin(tile, 91, 0, 2));
+        assertFalse(placements.isWithin(tile, 95, 0, 2));
+        assertFalse(placements.isWithin(other, 90, 0, 2));
+        assertFalse(placements.isWithin(tile, 90, 0, 0));
+    }
+}
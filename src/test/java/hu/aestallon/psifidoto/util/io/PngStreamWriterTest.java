@@ -0,0 +1,103 @@
+package hu.aestallon.psifidoto.util.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PngStreamWriterTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void writesRowsReadBackUnchanged() throws IOException {
+        int width = 173, height = 61;
+        int[] pixels = randomPixels(new Random(1), width * height);
+        Path file = directory.resolve("random.png");
+        // in uneven batches, each from an offset into the same array
+        try (PngStreamWriter writer = PngStreamWriter.create(file, width, height)) {
+            for (int row = 0, batch = 1; row < height; row += batch, batch = batch % 7 + 1) {
+                int rows = Math.min(batch, height - row);
+                writer.writeRows(pixels, row * width, rows);
+            }
+        }
+        assertPixels(ImageIO.read(file.toFile()), width, height, pixels);
+    }
+
+    @Test
+    void writesSmoothAndExtremeColours() throws IOException {
+        int width = 256, height = 4;
+        int[] pixels = new int[width * height];
+        for (int x = 0; x < width; x++) {
+            pixels[x] = x << 16 | x << 8 | x;
+            pixels[width + x] = (255 - x) << 16 | x;
+            pixels[2 * width + x] = x % 2 == 0 ? 0xFFFFFF : 0x000000;
+            pixels[3 * width + x] = 0xFF0000 >> (8 * (x % 3));
+        }
+        Path file = directory.resolve("gradients.png");
+        try (PngStreamWriter writer = PngStreamWriter.create(file, width, height)) {
+            writer.writeRows(pixels, 0, height);
+        }
+        assertPixels(ImageIO.read(file.toFile()), width, height, pixels);
+    }
+
+    @Test
+    void writesASinglePixel() throws IOException {
+        Path file = directory.resolve("pixel.png");
+        try (PngStreamWriter writer = PngStreamWriter.create(file, 1, 1)) {
+            writer.writeRows(new int[] {0x123456}, 0, 1);
+        }
+        assertPixels(ImageIO.read(file.toFile()), 1, 1, new int[] {0x123456});
+    }
+
+    @Test
+    void rejectsMoreRowsThanTheHeight() throws IOException {
+        try (PngStreamWriter writer = new PngStreamWriter(new ByteArrayOutputStream(), 2, 2)) {
+            writer.writeRows(new int[4], 0, 2);
+            assertThrows(IllegalStateException.class, () -> writer.writeRows(new int[2], 0, 1));
+        }
+    }
+
+    @Test
+    void rejectsClosingBeforeEveryRowIsWritten() throws IOException {
+        PngStreamWriter writer = new PngStreamWriter(new ByteArrayOutputStream(), 2, 2);
+        writer.writeRows(new int[2], 0, 1);
+        assertThrows(IllegalStateException.class, writer::close);
+    }
+
+    @Test
+    void rejectsEmptyImages() {
+        assertThrows(IllegalArgumentException.class, () -> new PngStreamWriter(new ByteArrayOutputStream(), 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new PngStreamWriter(new ByteArrayOutputStream(), 1, 0));
+    }
+
+    private static int[] randomPixels(Random random, int count) {
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            pixels[i] = random.nextInt(1 << 24);
+        }
+        return pixels;
+    }
+
+    private static void assertPixels(BufferedImage image, int width, int height, int[] expected) {
+        assertNotNull(image, "not a readable PNG");
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int pixel = image.getRGB(x, y) & 0xFFFFFF;
+                assertEquals(expected[y * width + x], pixel, "pixel (" + x + ", " + y + ")");
+            }
+        }
+    }
+}